@@ -0,0 +1,228 @@
+package com.tsushko.spos.hs.lexer.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Generates synthetic Haskell sources for the benchmarks.
+ * Every {@link Construct} produces a file dominated by one kind of token,
+ * so a regression in a single lexing state shows up in its own benchmark.
+ * The output depends only on the construct, the size and the seed.
+ * <p>
+ * Run as a program to write the corpus to a directory:
+ * {@code CorpusGenerator <directory> [size in bytes]}
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class CorpusGenerator {
+    public static final long DEFAULT_SEED = 20151115L;
+    public static final int DEFAULT_SIZE = 1 << 20;
+
+    public enum Construct {
+        nestedComments,
+        pragmas,
+        qualifiedNames,
+        numericLiterals,
+        strings,
+        mixed
+    }
+
+    private static final String[] MODULES = {
+            "Data", "Map", "Strict", "Control", "Monad", "State", "Text",
+            "List", "Maybe", "IO", "Internal", "Lazy", "Char", "Set"
+    };
+    private static final String[] VARIABLES = {
+            "map", "foldr", "insert", "lookup", "empty", "fromList", "go",
+            "xs", "acc", "result", "unsafeIndex", "runState", "x'", "_unused"
+    };
+    private static final String[] OPERATORS = {
+            ">>=", "<$>", "<*>", "++", ".", "$", "!", "==", "/=", "<>", ">=>", "&&&"
+    };
+    private static final String[] ESCAPES = {
+            "\\n", "\\t", "\\\\", "\\\"", "\\'", "\\x41", "\\o101", "\\65",
+            "\\^A", "\\NUL", "\\SOH", "\\DEL", "\\SO\\&H", "\\1114111"
+    };
+    private static final String[] PRAGMAS = {
+            "LANGUAGE ScopedTypeVariables", "INLINE go", "SPECIALIZE insert :: Int -> Int",
+            "OPTIONS_GHC -Wall -fno-warn-orphans", "UNPACK", "NOINLINE [1] lookup"
+    };
+
+    private final Random random;
+
+    public CorpusGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * generates the source heavy in the given construct,
+     * at least {@code size} characters long
+     */
+    public String generate(Construct construct, int size) {
+        StringBuilder out = new StringBuilder(size + 256);
+        out.append("module Generated.").append(construct).append(" where\n\n");
+        int line = 0;
+        while (out.length() < size) {
+            switch (construct) {
+                case nestedComments:
+                    nestedComment(out, 1 + random.nextInt(3));
+                    out.append('\n');
+                    break;
+                case pragmas:
+                    out.append("{-# ").append(pick(PRAGMAS)).append(" #-}\n");
+                    break;
+                case qualifiedNames:
+                    out.append(variable()).append(" = ")
+                            .append(qualified(pick(VARIABLES))).append(' ')
+                            .append(qualified(pick(OPERATORS))).append(' ')
+                            .append(qualified(constructor())).append('\n');
+                    break;
+                case numericLiterals:
+                    out.append(variable()).append(" = ");
+                    for (int i = 0; i < 6; i++) {
+                        out.append(number()).append(i < 5 ? " + " : "\n");
+                    }
+                    break;
+                case strings:
+                    out.append(variable()).append(" = ");
+                    string(out);
+                    out.append('\n');
+                    break;
+                case mixed:
+                    mixed(out, line);
+                    break;
+                default:
+                    throw new IllegalArgumentException(construct.toString());
+            }
+            ++line;
+        }
+        return out.toString();
+    }
+
+    private void mixed(StringBuilder out, int line) {
+        switch (line % 8) {
+            case 0:
+                out.append("-- | ").append(pick(VARIABLES)).append(" the ")
+                        .append(pick(VARIABLES)).append('\n');
+                break;
+            case 1:
+                out.append(variable()).append(" :: ").append(qualified(constructor()))
+                        .append(" -> [").append(constructor()).append("]\n");
+                break;
+            case 2:
+                out.append(variable()).append(' ').append(pick(VARIABLES))
+                        .append(" = case ").append(pick(VARIABLES)).append(" of\n");
+                break;
+            case 3:
+                out.append("    ").append(constructor()).append(" x -> x ")
+                        .append(pick(OPERATORS)).append(' ').append(number()).append('\n');
+                break;
+            case 4:
+                out.append("    _ -> ").append(qualified(pick(VARIABLES))).append(' ');
+                string(out);
+                out.append('\n');
+                break;
+            case 5:
+                out.append("  where go acc (y:ys) = go (acc ")
+                        .append(pick(OPERATORS)).append(" y) ys\n");
+                break;
+            case 6:
+                nestedComment(out, 1);
+                out.append('\n');
+                break;
+            default:
+                out.append("{-# INLINE ").append(pick(VARIABLES)).append(" #-}\n\n");
+                break;
+        }
+    }
+
+    private void nestedComment(StringBuilder out, int depth) {
+        out.append("{- ").append(pick(VARIABLES)).append(" - }");
+        if (depth > 1) {
+            out.append(' ');
+            nestedComment(out, depth - 1);
+        }
+        out.append(" -- not a line comment\n   ").append(pick(OPERATORS)).append(" -}");
+    }
+
+    private void string(StringBuilder out) {
+        out.append('"');
+        int parts = 2 + random.nextInt(6);
+        for (int i = 0; i < parts; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    out.append(pick(ESCAPES));
+                    break;
+                case 1:
+                    out.append("\\\n      \\");
+                    break;
+                default:
+                    out.append(pick(VARIABLES)).append(' ');
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    private String number() {
+        switch (random.nextInt(5)) {
+            case 0:
+                return Integer.toString(random.nextInt(100000));
+            case 1:
+                return random.nextInt(1000) + "." + random.nextInt(1000);
+            case 2:
+                return random.nextInt(10) + "." + random.nextInt(100)
+                        + (random.nextBoolean() ? "e-" : "E+") + random.nextInt(40);
+            case 3:
+                return "0x" + Integer.toHexString(random.nextInt()).toUpperCase();
+            default:
+                return "0o" + Integer.toOctalString(random.nextInt(1 << 20));
+        }
+    }
+
+    private String qualified(String name) {
+        StringBuilder out = new StringBuilder();
+        int depth = 1 + random.nextInt(3);
+        for (int i = 0; i < depth; i++) {
+            out.append(pick(MODULES)).append('.');
+        }
+        return out.append(name).toString();
+    }
+
+    private String variable() {
+        return pick(VARIABLES) + random.nextInt(100);
+    }
+
+    private String constructor() {
+        return pick(MODULES) + pick(MODULES);
+    }
+
+    private String pick(String[] words) {
+        return words[random.nextInt(words.length)];
+    }
+
+    /**
+     * writes the source heavy in the given construct to the file
+     */
+    public static void write(Construct construct, int size, File file) throws IOException {
+        String source = new CorpusGenerator(DEFAULT_SEED).generate(construct, size);
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(source);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args[0]);
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SIZE;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        for (Construct construct : Construct.values()) {
+            write(construct, size, new File(directory, construct + ".hs"));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.tsushko.spos.hs.lexer.benchmarks;
+
+import com.tsushko.spos.hs.lexer.Lexer;
+import com.tsushko.spos.hs.lexer.Token;
+import com.tsushko.spos.hs.lexer.TokenIterator;
+import com.tsushko.spos.hs.lexer.UnexpectedSymbolException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lexer over the generated corpus, one file per construct.
+ * Throughput is reported in documents per second together with the
+ * {@code bytes} and {@code tokens} rates of {@link Counters}; the
+ * allocation rate is reported by running with the GC profiler:
+ * <pre>
+ * java -jar target/benchmarks.jar LexerBenchmark -prof gc
+ * </pre>
+ * Both engines of the lexer are measured, see {@link Lexer#setTableDriven(boolean)}.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+    @Param({"nestedComments", "pragmas", "qualifiedNames",
+            "numericLiterals", "strings", "mixed"})
+    public CorpusGenerator.Construct construct;
+
+    @Param({"1048576"})
+    public int size;
+
+    /**
+     * whether the generated automaton lexes instead of the hand-written states
+     */
+    @Param({"false", "true"})
+    public boolean tableDriven;
+
+    private File file;
+    private long length;
+
+    /**
+     * the volume of input processed, reported by JMH per second
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            tokens = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        file = File.createTempFile("corpus-" + construct, ".hs");
+        CorpusGenerator.write(construct, size, file);
+        length = file.length();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private Lexer newLexer() {
+        Lexer lexer = new Lexer();
+        lexer.setTableDriven(tableDriven);
+        return lexer;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<Token> lexDocument(Counters counters)
+            throws IOException, UnexpectedSymbolException {
+        List<Token> tokens = newLexer().lexDocument(file);
+        counters.bytes += length;
+        counters.tokens += tokens.size();
+        return tokens;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void lexToSink(Counters counters, final Blackhole blackhole)
+            throws IOException, UnexpectedSymbolException {
+        final long[] count = new long[1];
+        newLexer().lexDocument(file, (type, start, end, chars, offset) -> {
+            blackhole.consume(type);
+            ++count[0];
+        });
+        counters.bytes += length;
+        counters.tokens += count[0];
+    }
+
+    /**
+     * the latency from opening the document to its first token,
+     * which is what an editor waits for before it can paint
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Token timeToFirstToken() throws IOException {
+        try (TokenIterator tokens = newLexer().iterateDocument(file)) {
+            return tokens.next();
+        }
+    }
+}
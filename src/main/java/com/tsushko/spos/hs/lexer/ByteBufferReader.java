@@ -0,0 +1,73 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes characters directly from a byte buffer, e.g. a memory-mapped
+ * file, without copying the bytes into an intermediate array.
+ * Malformed input is replaced the same way {@link java.io.FileReader} does.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+class ByteBufferReader extends Reader {
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+    private final char[] pending = new char[2];
+    private int pendingLength = 0;
+    private boolean flushed = false;
+
+    ByteBufferReader(ByteBuffer bytes, Charset charset) {
+        this.bytes = bytes;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pendingLength > 0) {
+            // the low surrogate left from the previous call
+            cbuf[off] = pending[1];
+            pendingLength = 0;
+            return 1;
+        }
+        if (flushed) {
+            return -1;
+        }
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        CoderResult result = decoder.decode(bytes, out, true);
+        if (result.isError()) {
+            result.throwException();
+        }
+        if (result.isUnderflow() && !bytes.hasRemaining()) {
+            decoder.flush(out);
+            flushed = true;
+        }
+        int read = out.position() - off;
+        if (read == 0 && result.isOverflow()) {
+            // a surrogate pair does not fit into a single char
+            CharBuffer pair = CharBuffer.wrap(pending);
+            decoder.decode(bytes, pair, true);
+            cbuf[off] = pending[0];
+            pendingLength = pair.position() - 1;
+            return 1;
+        }
+        return read == 0 && flushed ? -1 : read;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, the buffer is unmapped by the garbage collector
+    }
+}
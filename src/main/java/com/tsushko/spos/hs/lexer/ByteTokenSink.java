@@ -0,0 +1,38 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives tokens from {@link Utf8Lexer} as soon as they are recognized,
+ * as the spans of the UTF-8 bytes of the document
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Utf8Lexer#lex(ByteBuffer, ByteTokenSink)
+ */
+@FunctionalInterface
+public interface ByteTokenSink {
+    /**
+     * Receives the next token. The bytes of the token are
+     * {@code bytes.get(start)} through {@code bytes.get(end - 1)},
+     * see {@link Utf8Lexer#decode(ByteBuffer, int, int)}.
+     *
+     * @param type the type of the token
+     * @param start the index of the first byte of the token
+     * @param end the index following the last byte of the token
+     * @param bytes the buffer holding the document
+     */
+    void token(Token.Type type, int start, int end, ByteBuffer bytes);
+
+    /**
+     * Receives the whitespace between two tokens, which is not a token
+     * and is ignored by default
+     *
+     * @param start the index of the first whitespace byte
+     * @param end the index following the last whitespace byte
+     * @param bytes the buffer holding the document
+     */
+    default void whitespace(int start, int end, ByteBuffer bytes) {
+        // not a token
+    }
+}
@@ -0,0 +1,222 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Classifies characters with precomputed tables instead of evaluating
+ * the {@link Character} predicates for every character of input.
+ * ASCII characters are looked up in a flat array; the rest of the
+ * characters are looked up in deduplicated blocks of 256 characters.
+ * <p>
+ * Every character has a set of property flags and a kind, which is
+ * the first of the lexer's initial state branches the character
+ * may start.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer
+ */
+final class CharClass {
+    // property flags
+    static final int WHITESPACE = 1;
+    static final int DIGIT = 1 << 1;
+    static final int OCTAL = 1 << 2;
+    static final int HEX = 1 << 3;
+    static final int UPPER = 1 << 4;
+    /** lowercase letters and underscore */
+    static final int SMALL = 1 << 5;
+    /** a character that may be a part of identifier */
+    static final int IDENTIFIER = 1 << 6;
+    static final int SYMBOL = 1 << 7;
+    static final int SPECIAL = 1 << 8;
+
+    // kinds
+    static final int KIND_OTHER = 0;
+    static final int KIND_WHITESPACE = 1;
+    static final int KIND_DIGIT = 2;
+    static final int KIND_UPPER = 3;
+    static final int KIND_SMALL = 4;
+    static final int KIND_SYMBOL = 5;
+    static final int KIND_SPECIAL = 6;
+    static final int KIND_QUOTE = 7;
+    static final int KIND_DOUBLE_QUOTE = 8;
+
+    private static final int KIND_SHIFT = 16;
+    private static final int FLAGS_MASK = (1 << KIND_SHIFT) - 1;
+    private static final int BLOCK_BITS = 8;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    private static final int[] ASCII = new int[128];
+    /** the distinct properties, referred to from the blocks */
+    private static final int[] PROPERTIES;
+    /** the offset of the block of every 256 characters in BLOCKS */
+    private static final int[] BLOCK_OFFSETS = new int[(Character.MAX_VALUE + 1) >> BLOCK_BITS];
+    private static final byte[] BLOCKS;
+
+    static {
+        Map<Integer, Integer> propertyIndices = new HashMap<>();
+        Map<ByteBuffer, Integer> blockOffsets = new HashMap<>();
+        byte[] blocks = new byte[BLOCK_SIZE * 16];
+        int blocksLength = 0;
+        byte[] block = new byte[BLOCK_SIZE];
+        for (int high = 0; high < BLOCK_OFFSETS.length; high++) {
+            for (int low = 0; low < BLOCK_SIZE; low++) {
+                int property = compute((char) (high << BLOCK_BITS | low));
+                Integer index = propertyIndices.get(property);
+                if (index == null) {
+                    index = propertyIndices.size();
+                    propertyIndices.put(property, index);
+                }
+                block[low] = (byte) (int) index;
+            }
+            Integer offset = blockOffsets.get(ByteBuffer.wrap(block));
+            if (offset == null) {
+                if (blocksLength == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                }
+                System.arraycopy(block, 0, blocks, blocksLength, BLOCK_SIZE);
+                offset = blocksLength;
+                blocksLength += BLOCK_SIZE;
+                blockOffsets.put(ByteBuffer.wrap(block.clone()), offset);
+            }
+            BLOCK_OFFSETS[high] = offset;
+        }
+        if (propertyIndices.size() > 256) {
+            throw new IllegalStateException("Too many character classes");
+        }
+        PROPERTIES = new int[propertyIndices.size()];
+        for (Map.Entry<Integer, Integer> entry : propertyIndices.entrySet()) {
+            PROPERTIES[entry.getValue()] = entry.getKey();
+        }
+        BLOCKS = Arrays.copyOf(blocks, blocksLength);
+        for (char c = 0; c < ASCII.length; c++) {
+            ASCII[c] = compute(c);
+        }
+    }
+
+    private CharClass() {
+        // static tables only
+    }
+
+    /**
+     * returns the flags and the kind of the character
+     */
+    private static int of(char c) {
+        if (c < 128) {
+            return ASCII[c];
+        }
+        return PROPERTIES[index(c)];
+    }
+
+    /**
+     * returns the index of the properties of the character
+     * among the distinct properties
+     */
+    static int index(char c) {
+        return BLOCKS[BLOCK_OFFSETS[c >>> BLOCK_BITS] + (c & BLOCK_MASK)] & 0xFF;
+    }
+
+    /**
+     * returns the number of the distinct properties
+     */
+    static int indices() {
+        return PROPERTIES.length;
+    }
+
+    /**
+     * checks whether the characters with the properties of the given index
+     * have any of the given property flags
+     */
+    static boolean indexIs(int index, int flags) {
+        return (PROPERTIES[index] & flags) != 0;
+    }
+
+    /**
+     * returns the kind of the characters with the properties of the given index
+     */
+    static int indexKind(int index) {
+        return PROPERTIES[index] >>> KIND_SHIFT;
+    }
+
+    /**
+     * checks whether the character has any of the given property flags
+     */
+    static boolean is(char c, int flags) {
+        return (of(c) & flags) != 0;
+    }
+
+    /**
+     * returns the kind of the character
+     */
+    static int kind(char c) {
+        return of(c) >>> KIND_SHIFT;
+    }
+
+    /**
+     * computes the properties of the character the way
+     * the lexer used to check them one by one
+     */
+    private static int compute(char c) {
+        int flags = 0;
+        if (Character.isWhitespace(c)) {
+            flags |= WHITESPACE;
+        }
+        if (Character.isDigit(c)) {
+            flags |= DIGIT;
+        }
+        if (c >= '0' && c <= '7') {
+            flags |= OCTAL;
+        }
+        if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')
+                || (c >= 'A' && c <= 'F')) {
+            flags |= HEX;
+        }
+        if (Character.isUpperCase(c)) {
+            flags |= UPPER;
+        }
+        if (Character.isLowerCase(c) || c == '_') {
+            flags |= SMALL;
+        }
+        if (Character.isLetterOrDigit(c) || c == '\'' || c == '_') {
+            flags |= IDENTIFIER;
+        }
+        boolean special = c == '(' || c == ')' || c == ',' || c == ';'
+                || c == '[' || c == ']' || c == '`' || c == '{' || c == '}';
+        if (special) {
+            flags |= SPECIAL;
+        }
+        if (c == ':' || c == '!' || c == '#' || c == '%' || c == '&'
+                || c == '*' || c == '.' || c == '/' || c == '?' || c == '@'
+                || c == '\\' || c == '-'
+                || (!Character.isWhitespace(c) && !Character.isLetterOrDigit(c)
+                        && !special && c != '_' && c != '"' && c != '\'')) {
+            flags |= SYMBOL;
+        }
+
+        int kind;
+        if ((flags & WHITESPACE) != 0) {
+            kind = KIND_WHITESPACE;
+        } else if ((flags & DIGIT) != 0) {
+            kind = KIND_DIGIT;
+        } else if ((flags & UPPER) != 0) {
+            kind = KIND_UPPER;
+        } else if ((flags & SMALL) != 0) {
+            kind = KIND_SMALL;
+        } else if ((flags & SYMBOL) != 0) {
+            kind = KIND_SYMBOL;
+        } else if ((flags & SPECIAL) != 0) {
+            kind = KIND_SPECIAL;
+        } else if (c == '\'') {
+            kind = KIND_QUOTE;
+        } else if (c == '"') {
+            kind = KIND_DOUBLE_QUOTE;
+        } else {
+            kind = KIND_OTHER;
+        }
+        return kind << KIND_SHIFT | (flags & FLAGS_MASK);
+    }
+}
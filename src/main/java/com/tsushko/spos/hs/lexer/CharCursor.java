@@ -0,0 +1,292 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Provides buffered access to the characters of the lexer input.
+ * The characters are read from the underlying reader in large blocks
+ * and may be inspected at an arbitrary distance ahead of the current
+ * position, so the lexing states never need to push anything back.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer
+ */
+class CharCursor implements EscapeDecoder.Input {
+    /**
+     * the character returned for positions past the end of input
+     */
+    static final char EOF_CHAR = '\0';
+
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private final Reader reader;
+    private char[] buffer;
+    private int base = 0;
+    private int mark = 0;
+    private int position = 0;
+    private int limit = 0;
+    private boolean exhausted = false;
+
+    CharCursor(Reader reader) {
+        this(reader, DEFAULT_CAPACITY);
+    }
+
+    CharCursor(Reader reader, int capacity) {
+        this.reader = reader;
+        this.buffer = new char[capacity];
+    }
+
+    /**
+     * creates the cursor over the characters that are already in memory,
+     * the array is used as the buffer and is never copied
+     *
+     * @param source the characters of the document
+     * @param length the number of valid characters in the array
+     */
+    CharCursor(char[] source, int length) {
+        this(source, 0, length);
+    }
+
+    /**
+     * creates the cursor over the characters that are already in memory,
+     * starting from the given position
+     *
+     * @param source the characters of the document
+     * @param from the offset to start from
+     * @param length the number of valid characters in the array
+     */
+    CharCursor(char[] source, int from, int length) {
+        this.reader = null;
+        this.buffer = source;
+        this.mark = from;
+        this.position = from;
+        this.limit = length;
+        this.exhausted = true;
+    }
+
+    /**
+     * reads all characters from the reader into a single array
+     *
+     * @param reader the reader to read from, it is not closed
+     * @param sizeHint the expected number of characters
+     * @return the buffer wrapping the array, which holds the characters
+     *         up to the limit of the buffer
+     */
+    static CharBuffer readFully(Reader reader, int sizeHint)
+            throws IOException {
+        char[] chars = new char[Math.max(sizeHint, 16)];
+        int count = 0;
+        int read;
+        while ((read = reader.read(chars, count, chars.length - count)) != -1) {
+            count += read;
+            if (count == chars.length) {
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+        }
+        return CharBuffer.wrap(chars, 0, count);
+    }
+
+    /**
+     * makes sure that at least the given number of characters
+     * is available in the buffer starting from the current position
+     *
+     * @param count the number of characters required
+     * @return if the required number of characters is available
+     */
+    boolean has(int count) throws IOException {
+        return limit - position >= count || fill(count);
+    }
+
+    /**
+     * returns the character at the specified distance
+     * from the current position
+     *
+     * @param ahead the distance from the current position
+     * @return the character or {@link #EOF_CHAR} if the end of input
+     *         is reached before it
+     */
+    @Override
+    public char charAt(int ahead) throws IOException {
+        if (position + ahead < limit || fill(ahead + 1)) {
+            return buffer[position + ahead];
+        }
+        return EOF_CHAR;
+    }
+
+    /**
+     * checks whether the end of input was reached
+     * @return if there are no more characters to read
+     */
+    boolean isEOF() throws IOException {
+        return !has(1);
+    }
+
+    /**
+     * compares the given character to the beginning of input
+     */
+    boolean is(char c) throws IOException {
+        return has(1) && buffer[position] == c;
+    }
+
+    /**
+     * compares the given characters to the beginning of input
+     */
+    boolean is(char c0, char c1) throws IOException {
+        return has(2)
+                && buffer[position] == c0
+                && buffer[position + 1] == c1;
+    }
+
+    /**
+     * compares the given characters to the beginning of input
+     */
+    boolean is(char c0, char c1, char c2) throws IOException {
+        return has(3)
+                && buffer[position] == c0
+                && buffer[position + 1] == c1
+                && buffer[position + 2] == c2;
+    }
+
+    /**
+     * advances to the next occurrence of the character,
+     * scanning the buffer block by block
+     *
+     * @return if the character was found, otherwise the end of input
+     *         is reached
+     */
+    boolean skipTo(char c) throws IOException {
+        return skipTo(c, c, c);
+    }
+
+    /**
+     * advances to the next occurrence of any of the characters
+     *
+     * @return if any of the characters was found
+     */
+    boolean skipTo(char c0, char c1) throws IOException {
+        return skipTo(c0, c1, c1);
+    }
+
+    /**
+     * advances to the next occurrence of any of the characters
+     *
+     * @return if any of the characters was found
+     */
+    boolean skipTo(char c0, char c1, char c2) throws IOException {
+        do {
+            position = CharScanner.indexOf(buffer, position, limit, c0, c1, c2);
+            if (position < limit) {
+                return true;
+            }
+        } while (has(1));
+        return false;
+    }
+
+    /**
+     * advances past the whitespace characters
+     */
+    void skipWhitespace() throws IOException {
+        do {
+            position = CharScanner.skipWhitespace(buffer, position, limit);
+        } while (position == limit && has(1));
+    }
+
+    /**
+     * shifts current position on specified number of characters
+     *
+     * @param number the number of characters to advance
+     */
+    void advance(int number) throws IOException {
+        if (!has(number)) {
+            number = Math.max(limit - position, 0);
+        }
+        position += number;
+    }
+
+    /**
+     * marks the current position as the start of a token,
+     * the characters from the mark on are kept in the buffer
+     * until the next mark
+     */
+    void mark() {
+        mark = position;
+    }
+
+    /**
+     * returns the offset of the current position in the document
+     */
+    int offset() {
+        return base + position;
+    }
+
+    /**
+     * returns the offset of the marked position in the document
+     */
+    int markedOffset() {
+        return base + mark;
+    }
+
+    /**
+     * returns the index of the marked position in {@link #buffer()}
+     */
+    int markIndex() {
+        return mark;
+    }
+
+    /**
+     * returns the buffer holding the characters from the mark
+     * up to the current position; it is valid only until
+     * the cursor is advanced
+     */
+    char[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * closes the underlying reader
+     */
+    void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    /**
+     * reads more characters from the reader, keeping the marked and
+     * the unread characters and growing the buffer when necessary
+     *
+     * @param count the number of characters required from the current position
+     * @return if the required number of characters is available
+     */
+    private boolean fill(int count) throws IOException {
+        if (exhausted) {
+            return false;
+        }
+        int kept = limit - mark;
+        int required = count + position - mark;
+        if (required > buffer.length) {
+            char[] grown = new char[Math.max(required, buffer.length * 2)];
+            System.arraycopy(buffer, mark, grown, 0, kept);
+            buffer = grown;
+        } else if (mark > 0) {
+            System.arraycopy(buffer, mark, buffer, 0, kept);
+        }
+        base += mark;
+        position -= mark;
+        mark = 0;
+        limit = kept;
+        while (limit - position < count) {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                exhausted = true;
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+}
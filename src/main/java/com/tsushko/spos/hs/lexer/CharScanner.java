@@ -0,0 +1,53 @@
+package com.tsushko.spos.hs.lexer;
+
+/**
+ * Scans the runs of characters the lexer skips in bulk: whitespace and
+ * the bodies of comments and strings up to their delimiters.
+ * <p>
+ * This is the scalar version for all Java versions. The multi-release jar
+ * replaces it on Java 17 and later with the version using the Vector API
+ * when the {@code jdk.incubator.vector} module is added to the JVM.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see CharCursor
+ */
+final class CharScanner {
+    private CharScanner() {
+        // static methods only
+    }
+
+    /**
+     * returns if the characters are scanned by the vector instructions
+     */
+    static boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * returns the index of the first character of the range that is equal
+     * to any of the given characters, or the end of the range
+     */
+    static int indexOf(char[] chars, int from, int to,
+                       char c0, char c1, char c2) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c == c0 || c == c1 || c == c2) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * returns the index of the first character of the range
+     * that is not whitespace, or the end of the range
+     */
+    static int skipWhitespace(char[] chars, int from, int to) {
+        int i = from;
+        while (i < to && CharClass.is(chars[i], CharClass.WHITESPACE)) {
+            ++i;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,65 @@
+package com.tsushko.spos.hs.lexer;
+
+/**
+ * Deterministic automaton generated by {@link DfaBuilder}, stored as
+ * a flat transition table indexed by the state and the class of the
+ * next character. The state {@link #DEAD} has no way to accept
+ * anything, so the lexer stops reading once it gets there.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see LexicalGrammar
+ */
+final class Dfa {
+    static final int DEAD = 0;
+
+    /** the class of every symbol of the alphabet, see {@link Regex#symbol(char)} */
+    private final byte[] classes;
+    private final int width;
+    private final int[] transitions;
+    /** the rule accepted in every state, or -1 */
+    private final int[] accepts;
+    private final int start;
+
+    Dfa(byte[] classes, int width, int[] transitions, int[] accepts, int start) {
+        this.classes = classes;
+        this.width = width;
+        this.transitions = transitions;
+        this.accepts = accepts;
+        this.start = start;
+    }
+
+    int start() {
+        return start;
+    }
+
+    /**
+     * returns the state the automaton moves to from the state on the character
+     */
+    int next(int state, char c) {
+        int symbol = c < Regex.ASCII ? c : Regex.ASCII + CharClass.index(c);
+        return transitions[state * width + (classes[symbol] & 0xFF)];
+    }
+
+    /**
+     * returns the rule accepted in the state, or -1 if the state
+     * does not accept anything
+     */
+    int accept(int state) {
+        return accepts[state];
+    }
+
+    /**
+     * returns the number of the states
+     */
+    int states() {
+        return accepts.length;
+    }
+
+    /**
+     * returns the number of the classes of the characters
+     */
+    int width() {
+        return width;
+    }
+}
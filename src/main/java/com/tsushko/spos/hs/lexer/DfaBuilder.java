@@ -0,0 +1,324 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles the rules of a lexical grammar into a minimal deterministic
+ * automaton. The rules are regular expressions, which are combined into
+ * a nondeterministic automaton, determinized by the subset construction
+ * and minimized by the partition refinement. The symbols of the alphabet
+ * no expression tells apart are merged into the classes of the resulting
+ * {@link Dfa}.
+ * <p>
+ * Every state of the automaton accepts the rule with the least index
+ * among the rules matching the input read so far, so the rules added
+ * first win over the later ones matching as many characters.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see LexicalGrammar
+ */
+final class DfaBuilder {
+    private final Nfa nfa = new Nfa();
+    private final int start = nfa.state();
+    private int rules = 0;
+    private int[] stack = new int[0];
+
+    /**
+     * adds the rule matching the expression
+     *
+     * @return the index of the rule
+     */
+    int add(Regex regex) {
+        int from = nfa.state();
+        nfa.edge(start, null, from);
+        nfa.accept(regex.build(nfa, from), rules);
+        return rules++;
+    }
+
+    Dfa build() {
+        // the classes of the symbols no set of the expressions tells apart
+        List<BitSet> distinct = nfa.sets();
+        BitSet[] memberships = new BitSet[Regex.SYMBOLS];
+        for (int symbol = 0; symbol < memberships.length; symbol++) {
+            memberships[symbol] = new BitSet(distinct.size());
+        }
+        for (int i = 0; i < distinct.size(); i++) {
+            BitSet set = distinct.get(i);
+            for (int symbol = set.nextSetBit(0); symbol >= 0; symbol = set.nextSetBit(symbol + 1)) {
+                memberships[symbol].set(i);
+            }
+        }
+        int[] classOf = new int[Regex.SYMBOLS];
+        Map<BitSet, Integer> classIds = new HashMap<>();
+        for (int symbol = 0; symbol < classOf.length; symbol++) {
+            Integer id = classIds.get(memberships[symbol]);
+            if (id == null) {
+                id = classIds.size();
+                classIds.put(memberships[symbol], id);
+            }
+            classOf[symbol] = id;
+        }
+        int classes = classIds.size();
+        Map<BitSet, BitSet> setClasses = new HashMap<>();
+        for (BitSet set : distinct) {
+            BitSet ofSet = new BitSet(classes);
+            for (int symbol = set.nextSetBit(0); symbol >= 0; symbol = set.nextSetBit(symbol + 1)) {
+                ofSet.set(classOf[symbol]);
+            }
+            setClasses.put(set, ofSet);
+        }
+
+        // subset construction, the empty set is the dead state 0
+        Map<BitSet, Integer> ids = new HashMap<>();
+        List<BitSet> sets = new ArrayList<>();
+        List<int[]> rows = new ArrayList<>();
+        BitSet dead = new BitSet();
+        ids.put(dead, 0);
+        sets.add(dead);
+        BitSet initial = new BitSet();
+        initial.set(start);
+        closure(initial);
+        ids.put(initial, 1);
+        sets.add(initial);
+        for (int state = 0; state < sets.size(); state++) {
+            BitSet set = sets.get(state);
+            BitSet[] moves = new BitSet[classes];
+            for (int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+                for (Edge edge : nfa.edges.get(n)) {
+                    if (edge.symbols == null) {
+                        continue;
+                    }
+                    BitSet on = setClasses.get(edge.symbols);
+                    for (int c = on.nextSetBit(0); c >= 0; c = on.nextSetBit(c + 1)) {
+                        if (moves[c] == null) {
+                            moves[c] = new BitSet();
+                        }
+                        moves[c].set(edge.to);
+                    }
+                }
+            }
+            int[] row = new int[classes];
+            for (int c = 0; c < classes; c++) {
+                BitSet move = moves[c];
+                if (move == null) {
+                    continue;
+                }
+                closure(move);
+                Integer id = ids.get(move);
+                if (id == null) {
+                    id = sets.size();
+                    ids.put(move, id);
+                    sets.add(move);
+                }
+                row[c] = id;
+            }
+            rows.add(row);
+        }
+        int[] accepts = new int[sets.size()];
+        for (int state = 0; state < accepts.length; state++) {
+            accepts[state] = -1;
+            BitSet set = sets.get(state);
+            for (int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+                int rule = nfa.accepts.get(n);
+                if (rule >= 0 && (accepts[state] < 0 || rule < accepts[state])) {
+                    accepts[state] = rule;
+                }
+            }
+        }
+        return minimize(rows, accepts, classOf, classes);
+    }
+
+    /**
+     * merges the equivalent states by refining the partition of the states
+     * by the accepted rule until the transitions respect it
+     */
+    private static Dfa minimize(List<int[]> rows, int[] accepts,
+                                int[] classOf, int classes) {
+        int states = rows.size();
+        int[] block = new int[states];
+        for (int state = 0; state < states; state++) {
+            block[state] = accepts[state] + 1;
+        }
+        int blocks = -1;
+        for (;;) {
+            Map<Signature, Integer> signatures = new HashMap<>();
+            int[] next = new int[states];
+            for (int state = 0; state < states; state++) {
+                int[] row = rows.get(state);
+                int[] values = new int[classes + 1];
+                values[0] = block[state];
+                for (int c = 0; c < classes; c++) {
+                    values[c + 1] = block[row[c]];
+                }
+                Signature signature = new Signature(values);
+                Integer id = signatures.get(signature);
+                if (id == null) {
+                    id = signatures.size();
+                    signatures.put(signature, id);
+                }
+                next[state] = id;
+            }
+            if (signatures.size() == blocks) {
+                break;
+            }
+            blocks = signatures.size();
+            block = next;
+        }
+
+        // the block of the dead state becomes the state 0
+        int[] ids = new int[blocks];
+        Arrays.fill(ids, -1);
+        ids[block[0]] = Dfa.DEAD;
+        int count = 1;
+        int[] representatives = new int[blocks];
+        for (int state = 0; state < states; state++) {
+            if (ids[block[state]] < 0) {
+                ids[block[state]] = count++;
+            }
+            representatives[ids[block[state]]] = state;
+        }
+
+        // the classes all states treat alike are merged
+        Map<Signature, Integer> columns = new HashMap<>();
+        int[] merged = new int[classes];
+        for (int c = 0; c < classes; c++) {
+            int[] values = new int[count];
+            for (int id = 0; id < count; id++) {
+                values[id] = ids[block[rows.get(representatives[id])[c]]];
+            }
+            Signature column = new Signature(values);
+            Integer id = columns.get(column);
+            if (id == null) {
+                id = columns.size();
+                columns.put(column, id);
+            }
+            merged[c] = id;
+        }
+        int width = columns.size();
+        if (width > 256) {
+            throw new IllegalStateException("Too many symbol classes");
+        }
+
+        int[] transitions = new int[count * width];
+        int[] accepted = new int[count];
+        for (int id = 0; id < count; id++) {
+            int[] row = rows.get(representatives[id]);
+            for (int c = 0; c < classes; c++) {
+                transitions[id * width + merged[c]] = ids[block[row[c]]];
+            }
+            accepted[id] = accepts[representatives[id]];
+        }
+        byte[] symbolClasses = new byte[classOf.length];
+        for (int symbol = 0; symbol < classOf.length; symbol++) {
+            symbolClasses[symbol] = (byte) merged[classOf[symbol]];
+        }
+        return new Dfa(symbolClasses, width, transitions, accepted, ids[block[1]]);
+    }
+
+    /**
+     * adds the states reachable by the empty transitions to the set
+     */
+    private void closure(BitSet set) {
+        if (stack.length < nfa.edges.size()) {
+            stack = new int[nfa.edges.size()];
+        }
+        int size = 0;
+        for (int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+            stack[size++] = n;
+        }
+        while (size > 0) {
+            for (Edge edge : nfa.edges.get(stack[--size])) {
+                if (edge.symbols == null && !set.get(edge.to)) {
+                    set.set(edge.to);
+                    stack[size++] = edge.to;
+                }
+            }
+        }
+    }
+
+    /**
+     * nondeterministic automaton the expressions are built into
+     */
+    static final class Nfa {
+        private final List<List<Edge>> edges = new ArrayList<>();
+        private final List<Integer> accepts = new ArrayList<>();
+
+        /**
+         * adds a new state
+         */
+        int state() {
+            edges.add(new ArrayList<>(2));
+            accepts.add(-1);
+            return edges.size() - 1;
+        }
+
+        /**
+         * adds the transition on the symbols of the set,
+         * or the empty transition if the set is null
+         */
+        void edge(int from, BitSet symbols, int to) {
+            edges.get(from).add(new Edge(symbols, to));
+        }
+
+        void accept(int state, int rule) {
+            accepts.set(state, rule);
+        }
+
+        /**
+         * returns the distinct sets of symbols of the transitions
+         */
+        private List<BitSet> sets() {
+            Set<BitSet> sets = new LinkedHashSet<>();
+            for (List<Edge> list : edges) {
+                for (Edge edge : list) {
+                    if (edge.symbols != null) {
+                        sets.add(edge.symbols);
+                    }
+                }
+            }
+            return new ArrayList<>(sets);
+        }
+    }
+
+    /**
+     * the targets of the transitions of a state, or of a class from all states
+     */
+    private static class Signature {
+        private final int[] values;
+        private final int hash;
+
+        Signature(int[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Signature
+                    && Arrays.equals(values, ((Signature) other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Edge {
+        private final BitSet symbols;
+        private final int to;
+
+        Edge(BitSet symbols, int to) {
+            this.symbols = symbols;
+            this.to = to;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.tsushko.spos.hs.lexer;
+
+/**
+ * Describes malformed input found by the lexer,
+ * which was emitted as an {@link Token.Type#unidentified} token.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer#getDiagnostics()
+ */
+public class Diagnostic {
+    private final int start;
+    private final int offset;
+    private final String message;
+
+    Diagnostic(int start, int offset, String message) {
+        this.start = start;
+        this.offset = offset;
+        this.message = message;
+    }
+
+    /**
+     * returns the offset of the unidentified token in the document
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * returns the offset in the document the error was found at
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return offset + ": " + message;
+    }
+}
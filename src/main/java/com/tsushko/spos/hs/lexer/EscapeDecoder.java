@@ -0,0 +1,166 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.IOException;
+
+/**
+ * Recognizes the escape sequences of character and string literals
+ * in a single pass and decodes the characters they stand for.
+ * <p>
+ * The character escapes and the names of the ASCII control characters
+ * are matched with a trie stored as a state transition table, taking
+ * the longest name that matches, so {@code \SOH} is read as SOH rather
+ * than SO followed by H. Control, decimal, octal and hexadecimal escapes
+ * are scanned and converted along the way.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer
+ */
+final class EscapeDecoder {
+    /**
+     * the result of {@link #match(Input)} if the input is not an escape
+     */
+    static final long NO_MATCH = -1;
+
+    private static final String[] ASCII_NAMES = {
+            "NUL", "SOH", "STX", "ETX", "EOT", "ENQ", "ACK", "BEL",
+            "BS", "HT", "LF", "VT", "FF", "CR", "SO", "SI",
+            "DLE", "DC1", "DC2", "DC3", "DC4", "NAK", "SYN", "ETB",
+            "CAN", "EM", "SUB", "ESC", "FS", "GS", "RS", "US", "SP"
+    };
+    private static final String CHAR_ESCAPES = "abfnrtv\\\"'";
+    private static final String CHAR_ESCAPE_VALUES = "\u0007\b\f\n\r\t\u000B\\\"'";
+
+    private static final int ALPHABET = 128;
+    private static final int MAX_STATES = 128;
+    private static final int ROOT = 0;
+
+    /** the next state for every state and character, 0 if there is none */
+    private static final int[] transitions = new int[MAX_STATES * ALPHABET];
+    /** the character the escape ending in the state stands for, or -1 */
+    private static final int[] values = new int[MAX_STATES];
+    private static int states = 1;
+
+    static {
+        values[ROOT] = -1;
+        for (int i = 0; i < ASCII_NAMES.length; i++) {
+            add(ASCII_NAMES[i], i);
+        }
+        add("DEL", 127);
+        for (int i = 0; i < CHAR_ESCAPES.length(); i++) {
+            add(CHAR_ESCAPES.substring(i, i + 1), CHAR_ESCAPE_VALUES.charAt(i));
+        }
+    }
+
+    private EscapeDecoder() {
+        // static tables only
+    }
+
+    /**
+     * the characters the escape sequence is matched in
+     */
+    interface Input {
+        /**
+         * returns the character at the given distance ahead,
+         * or {@link CharCursor#EOF_CHAR} past the end of input
+         */
+        char charAt(int ahead) throws IOException;
+    }
+
+    private static void add(String name, int value) {
+        int state = ROOT;
+        for (int i = 0; i < name.length(); i++) {
+            int index = state * ALPHABET + name.charAt(i);
+            if (transitions[index] == 0) {
+                values[states] = -1;
+                transitions[index] = states++;
+            }
+            state = transitions[index];
+        }
+        values[state] = value;
+    }
+
+    /**
+     * Matches the escape sequence following a backslash at the current
+     * position of the input, without advancing the input.
+     *
+     * @param cursor the input positioned after the backslash
+     * @return the length of the escape sequence in the high 32 bits and
+     *         the code point it stands for in the low 32 bits,
+     *         or {@link #NO_MATCH}
+     */
+    static long match(Input cursor) throws IOException {
+        char c = cursor.charAt(0);
+        if (c == '^') {
+            char control = cursor.charAt(1);
+            if ((control >= 'A' && control <= 'Z') || control == '@'
+                    || control == '[' || control == '\\' || control == ']'
+                    || control == '^' || control == '_') {
+                return result(2, control - '@');
+            }
+            return NO_MATCH;
+        } else if (c == 'o') {
+            return number(cursor, 1, 8, CharClass.OCTAL);
+        } else if (c == 'x') {
+            return number(cursor, 1, 16, CharClass.HEX);
+        } else if (CharClass.is(c, CharClass.DIGIT)) {
+            return number(cursor, 0, 10, CharClass.DIGIT);
+        }
+
+        // names and character escapes, the longest one wins
+        int state = ROOT;
+        int length = 0;
+        long matched = NO_MATCH;
+        while (c < ALPHABET) {
+            state = transitions[state * ALPHABET + c];
+            if (state == 0) {
+                break;
+            }
+            ++length;
+            if (values[state] >= 0) {
+                matched = result(length, values[state]);
+            }
+            c = cursor.charAt(length);
+        }
+        return matched;
+    }
+
+    /**
+     * scans the digits of a numeric escape
+     *
+     * @param from the distance of the first digit from the cursor
+     * @param digits the flag of the characters that are digits in the radix
+     */
+    private static long number(Input cursor, int from, int radix, int digits)
+            throws IOException {
+        int length = from;
+        int value = 0;
+        char c;
+        while (CharClass.is(c = cursor.charAt(length), digits)) {
+            value = value * radix + Character.digit(c, radix);
+            if (value > Character.MAX_CODE_POINT) {
+                return NO_MATCH;
+            }
+            ++length;
+        }
+        return length == from ? NO_MATCH : result(length, value);
+    }
+
+    private static long result(int length, int codePoint) {
+        return (long) length << 32 | codePoint;
+    }
+
+    /**
+     * returns the length of the matched escape sequence
+     */
+    static int length(long match) {
+        return (int) (match >>> 32);
+    }
+
+    /**
+     * returns the code point of the matched escape sequence
+     */
+    static int codePoint(long match) {
+        return (int) match;
+    }
+}
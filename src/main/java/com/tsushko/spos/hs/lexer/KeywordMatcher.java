@@ -0,0 +1,128 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Recognizes keywords directly in a span of characters,
+ * without creating a string for the span.
+ * <p>
+ * The keywords are placed in a table by a perfect hash of their length
+ * and their first and last characters, so a span is compared with at most
+ * one keyword. The hash parameters are searched for when the matcher
+ * is created.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer
+ * @see Utf8Lexer
+ */
+final class KeywordMatcher {
+    private static final int MAX_TABLE_SIZE = 1 << 12;
+    private static final int MAX_FACTOR = 64;
+
+    private final char[][] table;
+    private final int mask;
+    private final int firstFactor;
+    private final int lastFactor;
+    private final int maxLength;
+
+    /**
+     * creates the matcher of the given keywords
+     *
+     * @param keywords the non-empty words to be recognized
+     * @throws IllegalArgumentException if no perfect hash was found
+     *         for the keywords
+     */
+    KeywordMatcher(Collection<String> keywords) {
+        int longest = 0;
+        for (String keyword : keywords) {
+            longest = Math.max(longest, keyword.length());
+        }
+        this.maxLength = longest;
+        for (int size = Integer.highestOneBit(Math.max(keywords.size(), 1)) << 1;
+             size <= MAX_TABLE_SIZE; size <<= 1) {
+            for (int first = 1; first < MAX_FACTOR; first++) {
+                for (int last = 0; last < MAX_FACTOR; last++) {
+                    char[][] candidate = place(keywords, size - 1, first, last);
+                    if (candidate != null) {
+                        this.table = candidate;
+                        this.mask = size - 1;
+                        this.firstFactor = first;
+                        this.lastFactor = last;
+                        return;
+                    }
+                }
+            }
+        }
+        throw new IllegalArgumentException("No perfect hash for " + keywords);
+    }
+
+    /**
+     * places the keywords into a table with the given hash parameters
+     *
+     * @return the table or null if any two keywords collide
+     */
+    private static char[][] place(Collection<String> keywords, int mask,
+                                  int firstFactor, int lastFactor) {
+        char[][] table = new char[mask + 1][];
+        for (String keyword : keywords) {
+            int slot = hash(keyword.charAt(0), keyword.charAt(keyword.length() - 1),
+                    keyword.length(), mask, firstFactor, lastFactor);
+            if (table[slot] != null) {
+                return null;
+            }
+            table[slot] = keyword.toCharArray();
+        }
+        return table;
+    }
+
+    private static int hash(char first, char last, int length,
+                            int mask, int firstFactor, int lastFactor) {
+        return (first * firstFactor + last * lastFactor + length) & mask;
+    }
+
+    /**
+     * checks whether the characters {@code chars[from]} through
+     * {@code chars[from + length - 1]} form one of the keywords
+     */
+    boolean matches(char[] chars, int from, int length) {
+        if (length == 0 || length > maxLength) {
+            return false;
+        }
+        char[] keyword = table[hash(chars[from], chars[from + length - 1],
+                length, mask, firstFactor, lastFactor)];
+        if (keyword == null || keyword.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (keyword[i] != chars[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * checks whether the bytes {@code bytes.get(from)} through
+     * {@code bytes.get(from + length - 1)} form one of the keywords,
+     * all of which are ASCII, so every keyword character is a single byte
+     */
+    boolean matches(ByteBuffer bytes, int from, int length) {
+        if (length == 0 || length > maxLength) {
+            return false;
+        }
+        char[] keyword = table[hash((char) (bytes.get(from) & 0xFF),
+                (char) (bytes.get(from + length - 1) & 0xFF),
+                length, mask, firstFactor, lastFactor)];
+        if (keyword == null || keyword.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (keyword[i] != (bytes.get(from + i) & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,350 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.util.Arrays;
+
+/**
+ * Applies the layout rule of Haskell to the tokens passing through it,
+ * inserting the virtual braces and semicolons before the tokens are passed
+ * on to the next sink, see {@link TokenSink#virtual(char, int)}.
+ * The stage works in the same pass as the lexer and keeps only the stack
+ * of the layout contexts, so the memory used does not depend on the size
+ * of the document:
+ * <pre>
+ * LayoutSink layout = new LayoutSink(parser);
+ * lexer.lexDocument(file, layout);
+ * layout.finish();
+ * </pre>
+ * The lines and columns of the tokens are tracked from the characters
+ * of the whitespace and of the tokens, with tab stops every 8 columns.
+ * Comments and pragmas do not take part in the layout.
+ * <p>
+ * The rule of the report that closes an implicit block on a parse error
+ * needs a parser; it is approximated for the common cases: {@code in}
+ * closes the block opened by {@code let}, {@code where} starting a line
+ * closes the block it is aligned with, and a closing bracket, brace or
+ * a comma at the level of the bracket a block was opened in closes the block.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer#iterateLayout(java.io.File)
+ */
+public class LayoutSink implements TokenSink {
+    private static final int TAB_STOP = 8;
+
+    private final TokenSink downstream;
+
+    private int line = 1;
+    private int column = 1;
+    private boolean afterReturn = false;
+    /**
+     * the line the last token which takes part in the layout ended on
+     */
+    private int lastLine = 0;
+    /**
+     * the offset following the last character passed
+     */
+    private int end = 0;
+
+    /**
+     * the indentation of the layout contexts, 0 for explicit braces
+     */
+    private int[] columns = new int[16];
+    /**
+     * the number of the brackets open when the context was opened
+     */
+    private int[] brackets = new int[16];
+    private boolean[] lets = new boolean[16];
+    private int depth = 0;
+    private int openBrackets = 0;
+
+    private boolean started = false;
+    private boolean expectingBlock = true;
+    private boolean expectingLet = false;
+    private boolean finished = false;
+
+    /**
+     * @param downstream the sink receiving the tokens and the virtual ones
+     */
+    public LayoutSink(TokenSink downstream) {
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void token(Token.Type type, int start, int end,
+                      char[] chars, int offset) {
+        boolean significant = layout(type, start, chars, offset, end - start);
+        downstream.token(type, start, end, chars, offset);
+        advance(type, significant, end, chars, offset, end - start);
+    }
+
+    @Override
+    public void literal(int start, int end, char[] chars, int offset,
+                        CharSequence value) {
+        boolean significant = layout(Token.Type.symbolicConstant, start,
+                chars, offset, end - start);
+        downstream.literal(start, end, chars, offset, value);
+        advance(Token.Type.symbolicConstant, significant, end,
+                chars, offset, end - start);
+    }
+
+    @Override
+    public void symbol(Token.Type type, int start, int end, char[] chars,
+                       int offset, int symbol) {
+        boolean significant = layout(type, start, chars, offset, end - start);
+        downstream.symbol(type, start, end, chars, offset, symbol);
+        advance(type, significant, end, chars, offset, end - start);
+    }
+
+    @Override
+    public void whitespace(int start, int end, char[] chars, int offset) {
+        downstream.whitespace(start, end, chars, offset);
+        track(chars, offset, offset + end - start);
+        this.end = end;
+    }
+
+    @Override
+    public void virtual(char punctuation, int offset) {
+        downstream.virtual(punctuation, offset);
+    }
+
+    /**
+     * Closes the blocks still open at the end of the document.
+     * It must be called once all tokens were passed.
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (expectingBlock) {
+            // the block of the last keyword is empty
+            downstream.virtual('{', end);
+            downstream.virtual('}', end);
+        }
+        while (depth > 0) {
+            if (columns[depth - 1] > 0) {
+                downstream.virtual('}', end);
+            }
+            --depth;
+        }
+    }
+
+    /**
+     * returns the line of the next character, counted from 1
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * returns the column of the next character, counted from 1
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * inserts the virtual tokens preceding the token
+     *
+     * @return if the token takes part in the layout
+     */
+    private boolean layout(Token.Type type, int start, char[] chars,
+                           int offset, int length) {
+        if (isComment(type, chars, offset, length)) {
+            return false;
+        }
+        int indentation = column;
+        boolean indented = false;
+        if (expectingBlock) {
+            expectingBlock = false;
+            boolean brace = isPunctuation(type, chars, offset, length, '{');
+            boolean module = !started && type == Token.Type.keyword
+                    && is(chars, offset, length, "module");
+            if (!brace && !module) {
+                downstream.virtual('{', start);
+                if (depth == 0 ? indentation > 0 : indentation > columns[depth - 1]) {
+                    push(indentation, expectingLet);
+                } else {
+                    downstream.virtual('}', start);
+                    indent(indentation, start);
+                }
+                indented = true;
+            }
+        }
+        started = true;
+        if (!indented && line > lastLine) {
+            if (type == Token.Type.keyword && is(chars, offset, length, "where")) {
+                // no item of a block starts with where, so it closes the block it is aligned with
+                while (depth > 0 && columns[depth - 1] >= indentation) {
+                    downstream.virtual('}', start);
+                    --depth;
+                }
+            } else {
+                indent(indentation, start);
+            }
+        }
+
+        if (type == Token.Type.punctuation && length == 1) {
+            switch (chars[offset]) {
+                case '{':
+                    push(0, false);
+                    break;
+                case '}':
+                    closeImplicit(start);
+                    if (depth > 0) {
+                        --depth;
+                    }
+                    break;
+                case '(':
+                case '[':
+                    ++openBrackets;
+                    break;
+                case ')':
+                case ']':
+                    closeBracket(start, openBrackets);
+                    openBrackets = Math.max(openBrackets - 1, 0);
+                    break;
+                case ',':
+                    if (openBrackets > 0) {
+                        closeBracket(start, openBrackets);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } else if (type == Token.Type.keyword && depth > 0
+                && lets[depth - 1] && columns[depth - 1] > 0
+                && is(chars, offset, length, "in")) {
+            downstream.virtual('}', start);
+            --depth;
+        }
+        return true;
+    }
+
+    /**
+     * tracks the position past the token and notes the keywords
+     * opening the blocks
+     */
+    private void advance(Token.Type type, boolean significant, int end,
+                         char[] chars, int offset, int length) {
+        track(chars, offset, offset + length);
+        this.end = end;
+        if (!significant) {
+            return;
+        }
+        lastLine = line;
+        if (type == Token.Type.keyword) {
+            expectingLet = is(chars, offset, length, "let");
+            expectingBlock = expectingLet
+                    || is(chars, offset, length, "where")
+                    || is(chars, offset, length, "do")
+                    || is(chars, offset, length, "of");
+        }
+    }
+
+    /**
+     * the first token of a line closes the blocks indented deeper
+     * and separates the items of the block it is aligned with
+     */
+    private void indent(int indentation, int offset) {
+        while (depth > 0) {
+            int current = columns[depth - 1];
+            if (indentation == current) {
+                downstream.virtual(';', offset);
+                return;
+            } else if (indentation < current) {
+                downstream.virtual('}', offset);
+                --depth;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * closes the implicit blocks up to the innermost explicit one
+     */
+    private void closeImplicit(int offset) {
+        while (depth > 0 && columns[depth - 1] > 0) {
+            downstream.virtual('}', offset);
+            --depth;
+        }
+    }
+
+    /**
+     * closes the implicit blocks opened inside the given bracket
+     */
+    private void closeBracket(int offset, int bracket) {
+        while (depth > 0 && columns[depth - 1] > 0
+                && brackets[depth - 1] >= bracket) {
+            downstream.virtual('}', offset);
+            --depth;
+        }
+    }
+
+    private void push(int indentation, boolean let) {
+        if (depth == columns.length) {
+            columns = Arrays.copyOf(columns, depth * 2);
+            brackets = Arrays.copyOf(brackets, depth * 2);
+            lets = Arrays.copyOf(lets, depth * 2);
+        }
+        columns[depth] = indentation;
+        brackets[depth] = openBrackets;
+        lets[depth] = let;
+        ++depth;
+    }
+
+    /**
+     * moves the line and the column over the characters
+     */
+    private void track(char[] chars, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c == '\n' && afterReturn) {
+                // the line feed of a CR LF pair
+                afterReturn = false;
+                continue;
+            }
+            afterReturn = c == '\r';
+            if (c == '\n' || c == '\r' || c == '\f') {
+                ++line;
+                column = 1;
+            } else if (c == '\t') {
+                column += TAB_STOP - (column - 1) % TAB_STOP;
+            } else if (!Character.isLowSurrogate(c)) {
+                ++column;
+            }
+        }
+    }
+
+    /**
+     * checks whether the token is a comment or a pragma,
+     * including the ones not closed before the end of file
+     */
+    private static boolean isComment(Token.Type type, char[] chars,
+                                     int offset, int length) {
+        if (type == Token.Type.comment || type == Token.Type.pragma) {
+            return true;
+        }
+        return type == Token.Type.unidentified && length >= 2
+                && (chars[offset] == '{' && chars[offset + 1] == '-'
+                || chars[offset] == '-' && chars[offset + 1] == '-');
+    }
+
+    private static boolean isPunctuation(Token.Type type, char[] chars,
+                                         int offset, int length, char c) {
+        return type == Token.Type.punctuation && length == 1 && chars[offset] == c;
+    }
+
+    private static boolean is(char[] chars, int offset, int length, String word) {
+        if (length != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[offset + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,35 +1,125 @@
 package com.tsushko.spos.hs.lexer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * Provides tools for splitting the text of a Haskell program
- * into tokens
+ * into tokens.
+ * <p>
+ * A lexer keeps the state of the document being lexed, so an instance
+ * must not be shared between threads; the keyword tables are immutable
+ * and shared by all instances. Use {@link ParallelLexer} to lex many
+ * files at once.
  *
  * @author Artem Tsushko
  * @version 1.0
  * @see Token
  */
 public class Lexer {
-    private static final int INPUT_LENGTH = 3;
-    private char[] input = new char[INPUT_LENGTH];
-    private int curInputLength = 0;
-    private PushbackReader reader = null;
-    private Set<String> reservedOps = new TreeSet<>(Arrays.asList(
+    /**
+     * the version of the tokens produced by the lexer, it must be changed
+     * whenever the same text is lexed into different tokens, so the tokens
+     * cached by the previous versions are not used
+     */
+    static final String VERSION = "1.0";
+
+    /**
+     * the maximum number of characters following a token
+     * that may be examined while lexing the token
+     */
+    private static final int LOOKAHEAD = 3;
+
+    private static final Set<String> reservedOps = immutableSet(
             "..", ":", "::", "=", "\\", "|", "<-", "->", "@", "~", "=>"
-    ));
-    private List<String> specialVarOps = Arrays.asList("-", "!");
-    private Set<String> reservedIds = new TreeSet<>(Arrays.asList(
+    );
+    private static final List<String> specialVarOps =
+            Collections.unmodifiableList(Arrays.asList("-", "!"));
+    static final Set<String> reservedIds = immutableSet(
             "_", "case", "class", "data", "default", "deriving",
             "do", "else", "foreign", "if", "import", "in", "infix",
             "infixl", "infixr", "instance", "let", "module",
             "newtype", "of", "then", "type", "where"
-    ));
-    private Set<String> specialVarIds = new TreeSet<>(Arrays.asList(
+    );
+    static final Set<String> specialVarIds = immutableSet(
             "as", "export", "hiding", "qualified", "safe", "unsafe"
-    ));
-    private List<Token> result = null;
+    );
+    static final KeywordMatcher keywords =
+            new KeywordMatcher(union(reservedIds, specialVarIds));
+
+    private CharCursor cursor = null;
+    private final Deque<Token> result = new ArrayDeque<>();
+    private final TokenSink queue = new TokenSink() {
+        @Override
+        public void token(Token.Type type, int start, int end,
+                          char[] chars, int offset) {
+            Token token = new Token(type, text(chars, offset, end - start));
+            token.setOffset(start);
+            result.add(token);
+        }
+
+        @Override
+        public void literal(int start, int end, char[] chars, int offset,
+                            CharSequence value) {
+            Token token = new Token(Token.Type.symbolicConstant,
+                    text(chars, offset, end - start), value.toString());
+            token.setOffset(start);
+            result.add(token);
+        }
+
+        @Override
+        public void symbol(Token.Type type, int start, int end,
+                           char[] chars, int offset, int symbol) {
+            Token token = new Token(type, symbolTable.symbol(symbol));
+            token.setOffset(start);
+            token.setSymbol(symbol);
+            result.add(token);
+        }
+
+        @Override
+        public void virtual(char punctuation, int offset) {
+            Token token = new Token(Token.Type.punctuation, String.valueOf(punctuation));
+            token.setOffset(offset);
+            token.setVirtual(true);
+            result.add(token);
+        }
+    };
+    private TokenSink sink = queue;
+    /**
+     * if the whole document is in memory, so the tokens are views of it
+     */
+    private boolean inMemory = false;
+    /**
+     * the layout stage of the iterated document or null
+     */
+    private LayoutSink layout = null;
+    private SymbolTable symbolTable = null;
+    /**
+     * the hash of the name being lexed, see {@link SymbolTable#hash}
+     */
+    private int hash = 0;
+    private boolean decodingLiterals = false;
+    private LexerStats stats = null;
+    private boolean recovering = false;
+    private boolean tableDriven = false;
+    private TokenCache tokenCache = null;
+    /**
+     * the types of the tokens passed to the sink or null for all types
+     */
+    private Set<Token.Type> tokenTypes = null;
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+    /**
+     * the value of the character or string literal being lexed
+     */
+    private final StringBuilder literal = new StringBuilder();
 
 
 
@@ -39,606 +129,1339 @@ public class Lexer {
 
     private boolean init(File file) throws IOException {
         try {
-            this.reader = new PushbackReader(new FileReader(file), INPUT_LENGTH);
-            read();
+            init(new FileReader(file));
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return false;
         }
-        result = new LinkedList<>();
         return true;
     }
 
     /**
-     * reads next {@link #INPUT_LENGTH} characters from file
+     * Sets whether the values of character and string literals are decoded
+     * while the literals are lexed. The decoded values are available from
+     * {@link Token#getValue()} and are passed to
+     * {@link TokenSink#literal(int, int, char[], int, CharSequence)}.
+     *
+     * @param decodingLiterals if the literals should be decoded
      */
-    private void read() throws IOException {
-        curInputLength = reader.read(input);
+    public void setDecodingLiterals(boolean decodingLiterals) {
+        this.decodingLiterals = decodingLiterals;
     }
 
     /**
-     * shifts current input on specified number of characters
+     * Sets the table the identifiers, operators and keywords are interned
+     * into. The tokens then share the strings of the table and carry
+     * the symbol ids, see {@link Token#getSymbol()}. The table may be shared
+     * by lexers running in different threads.
      *
-     * @param number the number of characters to advance
-     * @return the number of new characters read
+     * @param symbolTable the table or null to stop interning
      */
-    private int advance(int number) throws IOException {
-        int advance = Math.min(curInputLength,number);
-        reader.unread(input,advance,curInputLength - advance);
-        int oldInputLength = curInputLength;
-        read();
-        return curInputLength - (oldInputLength - advance);
+    public void setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
     }
 
     /**
-     * compares the given characters to the beginning of input
+     * Sets whether the lexer recovers from malformed input instead of
+     * throwing {@link UnexpectedSymbolException}. A recovering lexer emits
+     * the malformed text as {@link Token.Type#unidentified} tokens, records
+     * their {@link #getDiagnostics() diagnostics} and resumes lexing at the
+     * closest point a token may start: after the closing quote of a literal
+     * with an illegal escape sequence, at the end of the line of a literal
+     * that is not closed on its line, or after an unexpected character.
+     *
+     * @param recovering if the lexer should recover from errors
      */
-    private boolean is(char ... chars) {
-        if (chars.length > curInputLength)
-            return false;
-        for(int i = 0; i < chars.length; ++i) {
-            if (chars[i] != input[i]) {
-                return false;
-            }
+    public void setRecovering(boolean recovering) {
+        this.recovering = recovering;
+    }
+
+    /**
+     * Sets whether the tokens are recognized by the automaton generated
+     * from the lexical grammar instead of the hand-written states.
+     * The automaton reads every character once through a transition table
+     * and takes the longest match; the nested comments, pragmas, numeric
+     * escapes and malformed tokens are still lexed by the hand-written
+     * states, so both engines produce the same tokens and diagnostics.
+     *
+     * @param tableDriven if the generated automaton should be used
+     * @see LexicalGrammar
+     */
+    public void setTableDriven(boolean tableDriven) {
+        this.tableDriven = tableDriven;
+    }
+
+    /**
+     * Sets the types of the tokens the lexer produces. The tokens of
+     * the other types are still lexed, so their errors are reported,
+     * but their text is not built and they are not passed to the sink;
+     * comments, pragmas and literals are skipped by scanning ahead
+     * for their closing delimiters. The layout iterator needs every
+     * token, so its tokens are not filtered.
+     *
+     * @param tokenTypes the types of the wanted tokens or null for all types
+     */
+    public void setTokenTypes(Set<Token.Type> tokenTypes) {
+        if (tokenTypes == null) {
+            this.tokenTypes = null;
+        } else {
+            this.tokenTypes = EnumSet.noneOf(Token.Type.class);
+            this.tokenTypes.addAll(tokenTypes);
         }
-        return true;
     }
 
     /**
-     * checks whether the end of file was reached
-     * @return if the end of file was reached
+     * Returns the diagnostics of the unidentified tokens of the document
+     * lexed last, in the order of the tokens. The list is replaced
+     * when the next document is lexed.
+     *
+     * @return the copy of the diagnostics
      */
-    private boolean isEOF() {
-        return curInputLength == -1;
+    public List<Diagnostic> getDiagnostics() {
+        return new ArrayList<>(diagnostics);
     }
 
     /**
-     * compares the given characters to the beginning of input
-     * from specified offset
+     * Sets the cache {@link #lexDocument(File)} looks the tokens of the file
+     * up in before lexing it, by the hash of the content of the file.
+     * The cache is not used while the literals are decoded or the tokens
+     * are filtered, since the cached tokens have no values and are
+     * of all types. The cache may be shared by lexers running in
+     * different threads and processes.
+     *
+     * @param tokenCache the cache or null to stop caching
      */
-    private boolean is(int offset, char ... chars) {
-        if (chars.length > curInputLength - offset)
-            return false;
-        for(int i = 0; i < chars.length; ++i) {
-            if (chars[i] != input[i + offset]) {
-                return false;
+    public void setTokenCache(TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    /**
+     * Sets the statistics the lexer records its metrics into.
+     * Without the statistics the lexer does not measure anything.
+     *
+     * @param stats the statistics or null to stop recording
+     */
+    public void setStats(LexerStats stats) {
+        this.stats = stats;
+    }
+
+    public LexerStats getStats() {
+        return stats;
+    }
+
+    private void init(Reader reader) {
+        this.cursor = new CharCursor(reader);
+        this.sink = queue;
+        this.layout = null;
+        this.inMemory = false;
+        result.clear();
+        diagnostics.clear();
+    }
+
+    /**
+     * prepares the lexer to lex the characters in memory, which the tokens
+     * refer to instead of copying them
+     */
+    private void init(char[] source, int from, int end) {
+        this.cursor = new CharCursor(source, from, end);
+        this.sink = queue;
+        this.layout = null;
+        this.inMemory = true;
+        result.clear();
+        diagnostics.clear();
+    }
+
+    /**
+     * returns the text of the token, the view of the characters
+     * if the document is in memory, otherwise the copy of them
+     */
+    private CharSequence text(char[] chars, int offset, int length) {
+        return inMemory ? CharBuffer.wrap(chars, offset, length)
+                : new String(chars, offset, length);
+    }
+
+    /**
+     * Releases the document lexed last along with its tokens and
+     * diagnostics, keeping the settings of the lexer, so the instance
+     * may be reused for the next document. The iterator of the document
+     * must not be used after the reset.
+     */
+    public void reset() throws IOException {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+        sink = queue;
+        layout = null;
+        inMemory = false;
+        result.clear();
+        diagnostics.clear();
+        literal.setLength(0);
+    }
+
+    private static Set<String> immutableSet(String... strings) {
+        return Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(strings)));
+    }
+
+    private static Set<String> union(Set<String> first, Set<String> second) {
+        Set<String> union = new TreeSet<>(first);
+        union.addAll(second);
+        return union;
+    }
+
+    /**
+     * maps the file into memory and decodes it as UTF-8
+     * straight from the mapped buffer
+     */
+    private boolean initMapped(File file) throws IOException {
+        MappedByteBuffer bytes;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be mapped: " + file);
             }
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            return false;
         }
+        init(new ByteBufferReader(bytes, StandardCharsets.UTF_8));
         return true;
     }
 
+    /**
+     * shifts current input on specified number of characters
+     *
+     * @param number the number of characters to advance
+     */
+    private void advance(int number) throws IOException {
+        cursor.advance(number);
+    }
+
+    /**
+     * returns the character of input at the specified offset
+     */
+    private char input(int offset) throws IOException {
+        return cursor.charAt(offset);
+    }
+
+    /**
+     * compares the given characters to the beginning of input
+     */
+    private boolean is(char c) throws IOException {
+        return cursor.is(c);
+    }
+
+    /**
+     * compares the given characters to the beginning of input
+     */
+    private boolean is(char c0, char c1) throws IOException {
+        return cursor.is(c0, c1);
+    }
+
+    /**
+     * compares the given characters to the beginning of input
+     */
+    private boolean is(char c0, char c1, char c2) throws IOException {
+        return cursor.is(c0, c1, c2);
+    }
+
+    /**
+     * checks whether the end of file was reached
+     * @return if the end of file was reached
+     */
+    private boolean isEOF() throws IOException {
+        return cursor.isEOF();
+    }
+
     /**
      * checks if the given character could be a part of identifier
      * @param symbol a character from input
      * @return if the given character is a possible part of identifier
      */
     private boolean isIdentifier(char symbol) {
-        return (Character.isLetterOrDigit(symbol)
-                || symbol == '\'' || symbol == '_');
+        return CharClass.is(symbol, CharClass.IDENTIFIER);
     }
 
     /**
      * checks if the given character is symbol
      */
     private boolean isSymbol(char c) {
-        return (c == ':' || c == '!' || c == '#' || c == '%' || c == '&'
-                || c == '*' || c == '.' || c == '/' || c == '?' || c == '@'
-                || c == '\\' || c == '-')
-        || (!Character.isWhitespace(c) && !Character.isLetterOrDigit(c)
-                && c != '(' && c != ')' && c != ',' && c != ';'
-                && c != '[' && c != ']' && c != '`' && c != '{'
-                && c != '}' && c != '_' && c != '\"' && c != '\'');
+        return CharClass.is(c, CharClass.SYMBOL);
     }
 
     private boolean isOctDigit(char c) {
-        return c == '0' || c == '1' || c == '2' || c == '3'
-                || c == '4' || c == '5' || c == '6' || c == '7';
+        return CharClass.is(c, CharClass.OCTAL);
     }
 
     private boolean isHexDigit(char c) {
-        return isOctDigit(c) || c == '8' || c == '9'
-                || c == 'a' || c == 'b' || c == 'c'
-                || c == 'd' || c == 'e' || c == 'f'
-                || c == 'A' || c == 'B' || c == 'C'
-                || c == 'D' || c == 'E' || c == 'F';
+        return CharClass.is(c, CharClass.HEX);
     }
 
     private boolean isDigit(char c) {
-        return  Character.isDigit(c);
+        return CharClass.is(c, CharClass.DIGIT);
+    }
+
+    private boolean isWhitespace(char c) {
+        return CharClass.is(c, CharClass.WHITESPACE);
     }
 
+    private boolean isUpper(char c) {
+        return CharClass.is(c, CharClass.UPPER);
+    }
 
-    private boolean isAllDashes(String s) {
-        for (int i = 0; i < s.length(); i++) {
-            if(s.charAt(i) != '-')
-                return false;
-        }
-        return true;
+    /**
+     * checks if the given character is lowercase letter or underscore
+     */
+    private boolean isSmall(char c) {
+        return CharClass.is(c, CharClass.SMALL);
     }
 
 
 
+
     public List<Token> lexDocument(File file)
             throws IOException, UnexpectedSymbolException {
+        if (tokenCache != null && !decodingLiterals && tokenTypes == null) {
+            return lexCachedDocument(file);
+        }
         // init
         if (!init(file))
             return null;
-        while (!isEOF()) {
+        return lex();
+    }
+
+    /**
+     * looks the tokens of the file up in the cache,
+     * lexing and caching them if they are not there
+     */
+    private List<Token> lexCachedDocument(File file)
+            throws IOException, UnexpectedSymbolException {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            e.printStackTrace();
+            return null;
+        }
+        String key = TokenCache.key(content, recovering ? "recovering" : "");
+        diagnostics.clear();
+        List<Token> tokens = tokenCache.get(key, diagnostics);
+        if (tokens == null) {
+            // decoded the same way as by the file reader
+            init(new InputStreamReader(new ByteArrayInputStream(content)));
+            tokens = lex();
+            try {
+                tokenCache.put(key, tokens, diagnostics);
+            } catch (IOException e) {
+                // the tokens are lexed anyway, only caching them failed
+                e.printStackTrace();
+            }
+        } else if (symbolTable != null) {
+            for (Token token : tokens) {
+                Token.Type type = token.getType();
+                if (type == Token.Type.identifier || type == Token.Type.keyword
+                        || type == Token.Type.operator) {
+                    int symbol = symbolTable.intern(token.getString());
+                    token.setString(symbolTable.symbol(symbol));
+                    token.setSymbol(symbol);
+                }
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Lexes the file the same way as {@link #lexDocument(File)} does,
+     * but maps it into memory instead of streaming it through a reader.
+     * The file is expected to be encoded in UTF-8.
+     *
+     * @param file the Haskell source file
+     * @return the list of tokens or null if the file does not exist
+     */
+    public List<Token> lexMappedDocument(File file)
+            throws IOException, UnexpectedSymbolException {
+        // init
+        if (!initMapped(file))
+            return null;
+        return lex();
+    }
+
+    /**
+     * Lexes the characters in memory without writing them to a file.
+     * The characters are copied into an array once, the tokens are views
+     * of the array, see {@link Token#getText()}.
+     *
+     * @param source the text of the document
+     * @return the list of tokens
+     */
+    public List<Token> lexDocument(CharSequence source)
+            throws IOException, UnexpectedSymbolException {
+        char[] chars;
+        if (source instanceof String) {
+            chars = ((String) source).toCharArray();
+        } else {
+            chars = new char[source.length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = source.charAt(i);
+            }
+        }
+        return lexDocument(chars, 0, chars.length);
+    }
+
+    /**
+     * Lexes the range of the array without copying it. The tokens are views
+     * of the array, so it must not be changed while they are in use,
+     * and their offsets are the indices in the array.
+     *
+     * @param source the array holding the document
+     * @param offset the index of the first character of the document
+     * @param length the number of the characters of the document
+     * @return the list of tokens
+     */
+    public List<Token> lexDocument(char[] source, int offset, int length)
+            throws IOException, UnexpectedSymbolException {
+        if (offset < 0 || length < 0 || offset + length > source.length) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length
+                    + " is out of array of length " + source.length);
+        }
+        init(source, offset, offset + length);
+        return lex();
+    }
+
+    /**
+     * Reads all characters of the reader into memory and lexes them,
+     * see {@link #lexDocument(CharSequence)}. The reader is not closed.
+     *
+     * @param reader the reader of the document
+     * @return the list of tokens
+     */
+    public List<Token> lexDocument(Reader reader)
+            throws IOException, UnexpectedSymbolException {
+        CharBuffer source = CharCursor.readFully(reader, 8192);
+        return lexDocument(source.array(), source.position(), source.remaining());
+    }
+
+    /**
+     * Reads the stream into memory, decoding it with the default charset
+     * the same way as {@link #lexDocument(File)} decodes files, and lexes it.
+     * The stream is not closed.
+     *
+     * @param stream the bytes of the document
+     * @return the list of tokens
+     */
+    public List<Token> lexDocument(InputStream stream)
+            throws IOException, UnexpectedSymbolException {
+        return lexDocument(new InputStreamReader(stream));
+    }
+
+    /**
+     * Decodes the UTF-8 bytes from the position up to the limit of
+     * the buffer and lexes them the same way as
+     * {@link #lexMappedDocument(File)} does. The position of the buffer
+     * is not changed. See {@link Utf8Lexer} for lexing the bytes without
+     * decoding them.
+     *
+     * @param bytes the bytes of the document
+     * @return the list of tokens
+     */
+    public List<Token> lexDocument(ByteBuffer bytes)
+            throws IOException, UnexpectedSymbolException {
+        CharBuffer source = StandardCharsets.UTF_8.decode(bytes.duplicate());
+        return lexDocument(source.array(), source.arrayOffset() + source.position(),
+                source.remaining());
+    }
+
+    /**
+     * Lexes the file and passes every token to the sink as soon as
+     * it is recognized. No token objects or strings are created,
+     * the sink receives the type and the span of the token along with
+     * the buffer holding its characters.
+     *
+     * @param file the Haskell source file
+     * @param sink the receiver of the tokens
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public void lexDocument(File file, TokenSink sink)
+            throws IOException, UnexpectedSymbolException {
+        init(new FileReader(file));
+        this.sink = sink;
+        try {
+            while (!isEOF()) {
+                lexToken();
+            }
+        } finally {
+            this.sink = queue;
+            close();
+        }
+    }
+
+    /**
+     * Reads the whole file into memory and lexes it into a compact
+     * {@link TokenBuffer}, whose tokens refer to the read characters
+     * instead of holding their own strings.
+     *
+     * @param file the Haskell source file
+     * @return the buffer holding the tokens of the file
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public TokenBuffer lexToBuffer(File file)
+            throws IOException, UnexpectedSymbolException {
+        CharBuffer source;
+        try (Reader reader = new FileReader(file)) {
+            source = CharCursor.readFully(reader,
+                    (int) Math.min(file.length() + 1, Integer.MAX_VALUE - 8));
+        }
+        return lexToBuffer(source.array(), source.limit());
+    }
+
+    private TokenBuffer lexToBuffer(char[] source, int length)
+            throws IOException, UnexpectedSymbolException {
+        TokenBuffer buffer = new TokenBuffer(source, length);
+        this.cursor = new CharCursor(source, length);
+        diagnostics.clear();
+        this.sink = (type, start, end, chars, offset) ->
+                buffer.add(type, start, end);
+        try {
+            while (!isEOF()) {
+                lexToken();
+            }
+        } finally {
+            this.sink = queue;
+        }
+        buffer.trimToSize();
+        return buffer;
+    }
+
+    /**
+     * Lexes the document after an edit, reusing the tokens of the previous
+     * version of the document. Lexing restarts from the last token that
+     * could not be affected by the edit and stops as soon as it reaches
+     * a token start of the previous version past the edit, so the work
+     * is proportional to the edit rather than to the document size.
+     *
+     * @param previous the tokens of the document before the edit
+     * @param offset the offset of the edit
+     * @param removed the number of characters removed at the offset
+     * @param inserted the characters inserted at the offset
+     * @return the buffer holding the tokens of the edited document
+     */
+    public TokenBuffer relex(TokenBuffer previous, int offset, int removed,
+                             CharSequence inserted)
+            throws IOException, UnexpectedSymbolException {
+        char[] oldSource = previous.getSource();
+        int oldLength = previous.getSourceLength();
+        if (offset < 0 || removed < 0 || offset + removed > oldLength) {
+            throw new IndexOutOfBoundsException("Edit " + offset + "+" + removed
+                    + " is out of document of length " + oldLength);
+        }
+        int delta = inserted.length() - removed;
+        int length = oldLength + delta;
+        char[] source = new char[length];
+        System.arraycopy(oldSource, 0, source, 0, offset);
+        for (int i = 0; i < inserted.length(); i++) {
+            source[offset + i] = inserted.charAt(i);
+        }
+        System.arraycopy(oldSource, offset + removed,
+                source, offset + inserted.length(), oldLength - offset - removed);
+
+        /*  tokens that end far enough before the edit are unaffected,
+            and the lexer started a new token right after the last of them
+         */
+        int first = previous.firstEndingAfter(offset - LOOKAHEAD);
+        int restart = first == 0 ? 0 : previous.getEnd(first - 1);
+
+        TokenBuffer buffer = new TokenBuffer(source, length, previous.size());
+        buffer.addAll(previous, 0, first, 0);
+        this.cursor = new CharCursor(source, restart, length);
+        diagnostics.clear();
+        this.sink = (type, start, end, chars, from) ->
+                buffer.add(type, start, end);
+        try {
+            int editEnd = offset + inserted.length();
+            int next = first;
+            while (!isEOF()) {
+                int position = cursor.offset();
+                if (position >= editEnd) {
+                    /*  once a token starts where one of the previous tokens
+                        started, the rest of the stream is the same
+                     */
+                    int oldPosition = position - delta;
+                    while (next < previous.size()
+                            && previous.getStart(next) < oldPosition) {
+                        ++next;
+                    }
+                    if (next < previous.size()
+                            && previous.getStart(next) == oldPosition) {
+                        buffer.addAll(previous, next, previous.size(), delta);
+                        break;
+                    }
+                }
+                lexToken();
+            }
+        } finally {
+            this.sink = queue;
+        }
+        buffer.trimToSize();
+        return buffer;
+    }
+
+    /**
+     * Returns an iterator that lexes the file lazily, one token at a time,
+     * so the tokens may be processed and dropped while the rest of the file
+     * is not read yet. The iterator uses this lexer, so the lexer must not
+     * be used for another document until the iterator is exhausted or closed.
+     *
+     * @param file the Haskell source file
+     * @return the iterator over the tokens of the file
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public TokenIterator iterateDocument(File file) throws IOException {
+        init(new FileReader(file));
+        return new TokenIterator(this);
+    }
+
+    /**
+     * Returns an iterator that lexes the file lazily like
+     * {@link #iterateDocument(File)} and applies the layout rule to the tokens,
+     * so the virtual braces and semicolons are returned among them,
+     * see {@link Token#isVirtual()}.
+     *
+     * @param file the Haskell source file
+     * @return the iterator over the tokens of the file
+     * @throws FileNotFoundException if the file does not exist
+     * @see LayoutSink
+     */
+    public TokenIterator iterateLayout(File file) throws IOException {
+        init(new FileReader(file));
+        layout = new LayoutSink(queue);
+        sink = layout;
+        return new TokenIterator(this);
+    }
+
+    /**
+     * Returns a sequential stream that lexes the file lazily,
+     * see {@link #iterateDocument(File)}.
+     * The stream should be closed to release the file.
+     *
+     * @param file the Haskell source file
+     * @return the stream of the tokens of the file
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public Stream<Token> streamDocument(File file) throws IOException {
+        return iterateDocument(file).stream();
+    }
+
+    private List<Token> lex() throws IOException, UnexpectedSymbolException {
+        List<Token> tokens = new LinkedList<>();
+        try {
+            Token token;
+            while ((token = nextToken()) != null) {
+                tokens.add(token);
+            }
+        } finally {
+            close();
+        }
+        return tokens;
+    }
+
+    /**
+     * lexes the input until the next token is recognized
+     *
+     * @return the next token or null if the end of file was reached
+     */
+    Token nextToken() throws IOException, UnexpectedSymbolException {
+        while (result.isEmpty() && !isEOF()) {
             lexToken();
         }
-        return result;
+        if (result.isEmpty() && layout != null) {
+            layout.finish();
+            layout = null;
+        }
+        return result.poll();
+    }
+
+    /**
+     * prepares the lexer to lex the characters in memory
+     * starting from the given offset
+     *
+     * @param source the characters of the document
+     * @param from the offset to start from
+     * @param length the number of valid characters in the array
+     * @param sink the receiver of the tokens
+     */
+    void start(char[] source, int from, int length, TokenSink sink) {
+        this.cursor = new CharCursor(source, from, length);
+        this.sink = sink;
+        this.layout = null;
+        this.inMemory = false;
+        result.clear();
+        diagnostics.clear();
+    }
+
+    /**
+     * lexes the next token or skips the next whitespace character
+     *
+     * @return if anything was lexed, false at the end of input
+     */
+    boolean step() throws IOException, UnexpectedSymbolException {
+        if (isEOF()) {
+            return false;
+        }
+        lexToken();
+        return true;
+    }
+
+    /**
+     * returns the offset the next token would be lexed from
+     */
+    int position() {
+        return cursor.offset();
+    }
+
+    /**
+     * releases the input of the current document
+     */
+    void close() throws IOException {
+        cursor.close();
     }
 
     /**
      * initial state
      */
     private void lexToken() throws IOException, UnexpectedSymbolException {
-        if (Character.isWhitespace(input[0])) {
-            lexWhitespace();
-        } else if (is('{', '-', '#')) {
-            lexPragma();
-        } else if (is('{','-')) {
-            lexNestedComment();
-        } else if (is('-','-')) {
-            lexDashes();
-        } else if (is('0')
-                && curInputLength > 2
-                && Character.toLowerCase(input[1]) == 'o'
-                && isOctDigit(input[2])) {
-            lexOctDigit();
-        } else if (is('0')
-                && curInputLength > 2
-                && Character.toLowerCase(input[1]) == 'x'
-                && isHexDigit(input[2])) {
-            lexHexDigit();
-        } else if (isDigit(input[0])) {
-            lexDecimalOrFloat();
-        } else if (Character.isUpperCase(input[0])) {
-            lexConstructorOrQualifier(null);
-        } else if (Character.isLowerCase(input[0]) || input[0] == '_') {
-            lexKeywordOrIdentifier();
-        } else if (isSymbol(input[0])) {
-            lexOperator();
-        } else if (is('(') || is(')') || is(',')
-                || is(';') || is('[') || is(']')
-                || is('`') || is('{') || is('}')) {
-            result.add(new Token(
-                    Token.Type.punctuation,
-                    String.valueOf(input[0])));
+        cursor.mark();
+        hash = 0;
+        if (stats == null) {
+            lexState();
+        } else {
+            lexMeasuredState();
+        }
+    }
+
+    /**
+     * lexes the next token in the state chosen by its first character,
+     * recording the time spent and the characters consumed
+     */
+    private void lexMeasuredState() throws IOException, UnexpectedSymbolException {
+        int start = cursor.offset();
+        Object event = stats.isRecordingEvents() ? LexerEvents.begin() : null;
+        long time = System.nanoTime();
+        LexerStats.State state = lexState();
+        time = System.nanoTime() - time;
+        int characters = cursor.offset() - start;
+        stats.state(state, characters, time);
+        if (event != null) {
+            LexerEvents.commit(event, state, start, characters);
+        }
+    }
+
+    /**
+     * lexes the next token in the state chosen by its first character
+     *
+     * @return the state the token was lexed in
+     */
+    private LexerStats.State lexState()
+            throws IOException, UnexpectedSymbolException {
+        if (tableDriven) {
+            LexerStats.State state = lexTable();
+            if (state != null) {
+                return state;
+            }
+        }
+        char c = input(0);
+        switch (CharClass.kind(c)) {
+            case CharClass.KIND_WHITESPACE:
+                lexWhitespace();
+                return LexerStats.State.whitespace;
+            case CharClass.KIND_SPECIAL:
+                if (is('{', '-', '#')) {
+                    lexPragma();
+                    return LexerStats.State.pragma;
+                } else if (is('{', '-')) {
+                    lexNestedComment();
+                    return LexerStats.State.nestedComment;
+                } else {
+                    advance(1);
+                    emit(Token.Type.punctuation);
+                    return LexerStats.State.punctuation;
+                }
+            case CharClass.KIND_SYMBOL:
+                if (is('-', '-')) {
+                    lexDashes();
+                    return LexerStats.State.dashes;
+                } else {
+                    lexOperator();
+                    return LexerStats.State.operator;
+                }
+            case CharClass.KIND_DIGIT:
+                if (isRadixPrefix('o', 'O')
+                        && isOctDigit(input(2))) {
+                    lexOctDigit();
+                    return LexerStats.State.octal;
+                } else if (isRadixPrefix('x', 'X')
+                        && isHexDigit(input(2))) {
+                    lexHexDigit();
+                    return LexerStats.State.hexadecimal;
+                } else {
+                    lexDecimalOrFloat();
+                    return LexerStats.State.decimalOrFloat;
+                }
+            case CharClass.KIND_UPPER:
+                lexConstructorOrQualifier();
+                return LexerStats.State.constructorOrQualifier;
+            case CharClass.KIND_SMALL:
+                lexKeywordOrIdentifier();
+                return LexerStats.State.keywordOrIdentifier;
+            case CharClass.KIND_QUOTE:
+                lexChar();
+                return LexerStats.State.character;
+            case CharClass.KIND_DOUBLE_QUOTE:
+                lexString();
+                return LexerStats.State.string;
+            default:
+                lexUnexpected();
+                return LexerStats.State.unexpected;
+        }
+    }
+
+    /**
+     * lexes the next token with the automaton generated from the grammar
+     *
+     * @return the state of the hand-written lexer lexing the same tokens,
+     *         or null if the token is left to the hand-written states
+     */
+    private LexerStats.State lexTable() throws IOException {
+        Dfa dfa = LexicalGrammar.DFA;
+        int state = dfa.start();
+        int rule = -1;
+        int length = 0;
+        for (int i = 0; ; ) {
+            char c = cursor.charAt(i);
+            if (c == CharCursor.EOF_CHAR && !cursor.has(i + 1)) {
+                break;
+            }
+            state = dfa.next(state, c);
+            if (state == Dfa.DEAD) {
+                break;
+            }
+            ++i;
+            if (dfa.accept(state) >= 0) {
+                rule = dfa.accept(state);
+                length = i;
+            }
+        }
+        if (rule < 0) {
+            return null;
+        }
+        LexicalGrammar.Rule matched = LexicalGrammar.RULES[rule];
+        if (matched == LexicalGrammar.Rule.fallback
+                || matched.isLiteral() && isDecoding()) {
+            return null;
+        }
+        advance(length - matched.trailing());
+        if (matched == LexicalGrammar.Rule.whitespace) {
+            sink.whitespace(cursor.markedOffset(), cursor.offset(),
+                    cursor.buffer(), cursor.markIndex());
+        } else if (matched.isLiteral()) {
+            emitLiteral();
+        } else if (matched.isName()) {
+            if (symbolTable != null) {
+                hash = SymbolTable.hash(cursor.buffer(), cursor.markIndex(),
+                        cursor.offset() - cursor.markedOffset());
+            }
+            emitName(matched.type);
+        } else {
+            emit(matched.type);
+        }
+        return matched.state;
+    }
+
+    /**
+     * checks whether the input starts with 0 followed by
+     * the given radix letter and at least one more character
+     */
+    private boolean isRadixPrefix(char lower, char upper) throws IOException {
+        return is('0') && cursor.has(3)
+                && (input(1) == lower || input(1) == upper);
+    }
+
+    /**
+     * passes the token from the mark up to the current position to the sink
+     */
+    private void emit(Token.Type type) {
+        if (stats != null) {
+            stats.token(type, cursor.markedOffset(), cursor.offset());
+        }
+        if (isSkipped(type)) {
+            return;
+        }
+        sink.token(type, cursor.markedOffset(), cursor.offset(),
+                cursor.buffer(), cursor.markIndex());
+    }
+
+    /**
+     * shifts current input on one character of a name,
+     * adding the character to the hash of the name
+     */
+    private void advanceName() throws IOException {
+        hash = 31 * hash + input(0);
+        advance(1);
+    }
+
+    /**
+     * passes the identifier, operator or keyword from the mark up to
+     * the current position to the sink, along with its symbol id
+     * if the names are interned
+     */
+    private void emitName(Token.Type type) {
+        if (symbolTable == null || isSkipped(type)) {
+            emit(type);
+            return;
+        }
+        char[] chars = cursor.buffer();
+        int from = cursor.markIndex();
+        int start = cursor.markedOffset();
+        int end = cursor.offset();
+        int symbol = symbolTable.intern(chars, from, end - start, hash);
+        if (stats != null) {
+            stats.token(type, start, end);
+        }
+        sink.symbol(type, start, end, chars, from, symbol);
+    }
+
+    /**
+     * passes the character or string literal from the mark up to
+     * the current position to the sink, along with its value if
+     * the literals are decoded
+     */
+    private void emitLiteral() {
+        if (isDecoding()) {
+            if (stats != null) {
+                stats.token(Token.Type.symbolicConstant,
+                        cursor.markedOffset(), cursor.offset());
+            }
+            sink.literal(cursor.markedOffset(), cursor.offset(),
+                    cursor.buffer(), cursor.markIndex(), literal);
+        } else {
+            emit(Token.Type.symbolicConstant);
+        }
+    }
+
+    /**
+     * checks whether the tokens of the type are not wanted
+     */
+    private boolean isSkipped(Token.Type type) {
+        return tokenTypes != null && layout == null && !tokenTypes.contains(type);
+    }
+
+    /**
+     * checks whether the value of the literal being lexed is decoded
+     */
+    private boolean isDecoding() {
+        return decodingLiterals && !isSkipped(Token.Type.symbolicConstant);
+    }
+
+    /**
+     * records the diagnostic of the unidentified token from the mark
+     *
+     * @param offset the offset the error was found at
+     */
+    private void diagnose(int offset, String message) {
+        diagnostics.add(new Diagnostic(cursor.markedOffset(), offset, message));
+    }
+
+    /**
+     * reports the error found at the current position: records its diagnostic
+     * if the lexer recovers from errors, otherwise throws it
+     */
+    private void fail(String message) throws UnexpectedSymbolException {
+        if (!recovering) {
+            throw new UnexpectedSymbolException(message);
+        }
+        diagnose(cursor.offset(), message);
+    }
+
+    /**
+     * skips the rest of a malformed literal up to and including
+     * its closing quote, but not past the end of its line
+     */
+    private void skipLiteral(char quote) throws IOException {
+        while (!isEOF() && !is(quote) && !is('\n')) {
+            if (is('\\') && cursor.has(2) && input(1) != '\n') {
+                advance(2);
+            } else {
+                advance(1);
+            }
+        }
+        if (is(quote)) {
             advance(1);
-        } else if (is('\'')) {
-            lexChar();
-        } else if (is('\"')) {
-            lexString();
+        }
+    }
+
+    private void lexUnexpected() throws IOException, UnexpectedSymbolException {
+        char c = input(0);
+        if (!recovering) {
+            throw new UnexpectedSymbolException(c);
+        }
+        // synchronization symbol - the next character
+        diagnose(cursor.offset(), "Unexpected character " + c);
+        if (Character.isHighSurrogate(c) && Character.isLowSurrogate(input(1))) {
+            advance(2);
         } else {
-            throw new UnexpectedSymbolException(input[0]);
-            // TODO: not possible at this point
+            advance(1);
         }
+        emit(Token.Type.unidentified);
     }
 
     private void lexWhitespace() throws IOException {
-        // we do not lex whitespaces
+        // we do not lex whitespaces, the whole run is passed to the sink
         advance(1);
+        cursor.skipWhitespace();
+        sink.whitespace(cursor.markedOffset(), cursor.offset(),
+                cursor.buffer(), cursor.markIndex());
     }
 
     private void lexNestedComment() throws IOException {
-        StringBuilder builder = new StringBuilder();
         int balance = 1;
 
         // absorb {-
-        builder.append(input, 0, 2);
         advance(2);
 
         do {
             if (is('-', '}')) {
-                builder.append(input, 0, 2);
                 advance(2);
                 if (--balance == 0) {
-                    result.add(new Token(Token.Type.comment, builder.toString()));
+                    emit(Token.Type.comment);
                 }
             } else if (is('{', '-')) {
-                builder.append(input, 0, 2);
                 advance(2);
                 ++balance;
             } else if (isEOF()) {
-                result.add(new Token(Token.Type.unidentified, builder.toString()));
+                diagnose(cursor.offset(), "EOF before comment closed");
+                emit(Token.Type.unidentified);
                 return;
             } else {
-                builder.append(input[0]);
                 advance(1);
+                cursor.skipTo('-', '{');
             }
         } while (balance != 0);
     }
 
     private void lexPragma() throws IOException {
-        StringBuilder builder = new StringBuilder();
         int balance = 1;
 
         // absorb {-#
-        builder.append(input, 0, 3);
         advance(3);
 
         do {
             if (is('#', '-', '}')) {
-                builder.append(input, 0, 3);
                 advance(3);
                 if (--balance == 0) {
-                    result.add(new Token(Token.Type.pragma, builder.toString()));
+                    emit(Token.Type.pragma);
                 }
             } else if (is('-', '}')) {
-                builder.append(input, 0, 2);
                 advance(2);
                 if (--balance == 0) {
-                    result.add(new Token(Token.Type.comment, builder.toString()));
+                    emit(Token.Type.comment);
                 }
             } else if (is('{', '-')) {
-                builder.append(input, 0, 2);
                 advance(2);
                 ++balance;
             } else if (isEOF()) {
-                result.add(new Token(Token.Type.unidentified, builder.toString()));
+                diagnose(cursor.offset(), "EOF before pragma closed");
+                emit(Token.Type.unidentified);
                 return;
             } else {
-                builder.append(input[0]);
                 advance(1);
+                cursor.skipTo('#', '-', '{');
             }
         } while (balance != 0);
     }
 
     private void lexDashes() throws IOException {
-        StringBuilder builder = new StringBuilder();
+        boolean allDashes = true;
 
         // absorb --
-        builder.append(input, 0, 2);
-        advance(2);
+        advanceName();
+        advanceName();
 
         /*  absorb all symbols in order to decide
             whether the dashes begin a comment
             or an operator
          */
-        while (isSymbol(input[0])) {
-            if (isEOF()) {
-                String absorbed = builder.toString();
-                if (isAllDashes(absorbed)) {
-                    // normal comment should end with line break
-                    result.add(new Token(Token.Type.unidentified, absorbed));
-                    return;
-                } else {
-                    result.add(new Token(Token.Type.operator, absorbed));
-                    return;
-                }
-            } else {
-                builder.append(input[0]);
-                advance(1);
-            }
+        while (!isEOF() && isSymbol(input(0))) {
+            allDashes &= input(0) == '-';
+            advanceName();
         }
 
-
-        if (isAllDashes(builder.toString())) {
-            // parse comment
-            while (input[0] != '\n') {
-                if (isEOF()) {
-                    // normal comment should end with line break
-                    result.add(new Token(
-                            Token.Type.unidentified, builder.toString()));
-                    return;
-                } else {
-                    // absorb everything up to the line terminator
-                    builder.append(input[0]);
-                    advance(1);
-                }
+        if (allDashes) {
+            // absorb everything up to the line terminator
+            if (!cursor.skipTo('\n')) {
+                // normal comment should end with line break
+                diagnose(cursor.offset(), "EOF before line break ending comment");
+                emit(Token.Type.unidentified);
+                return;
             }
-            result.add(new Token(Token.Type.comment, builder.toString()));
+            emit(Token.Type.comment);
         } else {
             // add operator
-            result.add(new Token(Token.Type.operator, builder.toString()));
+            emitName(Token.Type.operator);
         }
 
     }
 
     private void lexOctDigit() throws IOException {
-        StringBuilder builder = new StringBuilder();
-
         // accept 0oN
-        builder.append(input, 0, 3);
         advance(3);
 
-        while (isOctDigit(input[0]) && !isEOF()) {
-            builder.append(input[0]);
+        while (isOctDigit(input(0)) && !isEOF()) {
             advance(1);
         }
 
-        result.add(new Token(Token.Type.numericConstant, builder.toString()));
+        emit(Token.Type.numericConstant);
     }
 
     private void lexHexDigit() throws IOException {
-        StringBuilder builder = new StringBuilder();
-
         // accept 0xN
-        builder.append(input, 0, 3);
         advance(3);
 
-        while (isHexDigit(input[0]) && !isEOF()) {
-            builder.append(input[0]);
+        while (isHexDigit(input(0)) && !isEOF()) {
             advance(1);
         }
 
-        result.add(new Token(Token.Type.numericConstant, builder.toString()));
+        emit(Token.Type.numericConstant);
     }
 
     private void lexDecimalOrFloat() throws IOException, UnexpectedSymbolException {
-        StringBuilder builder = new StringBuilder();
         // integer part
-        while (isDigit(input[0]) && !isEOF()) {
-            builder.append(input[0]);
+        while (isDigit(input(0)) && !isEOF()) {
             advance(1);
         }
         // fractional part
-        if (is('.') && curInputLength > 1 && isDigit(input[1])) {
-            builder.append(input[0]);
+        if (is('.') && cursor.has(2) && isDigit(input(1))) {
             advance(1);
-            while (isDigit(input[0]) && !isEOF()) {
-                builder.append(input[0]);
+            while (isDigit(input(0)) && !isEOF()) {
                 advance(1);
             }
         }
         // exponent
         if ( (is('e') || is('E')) ) {
-            if (curInputLength > 2
-                    && (input[1] == '+' || input[1] == '-')
-                    && isDigit(input[2])) {
+            if (cursor.has(3)
+                    && (input(1) == '+' || input(1) == '-')
+                    && isDigit(input(2))) {
                 advance(3);
-                builder.append(input,0,3);
-            } else if (curInputLength > 1 && isDigit(input[1])) {
+            } else if (cursor.has(2) && isDigit(input(1))) {
                 advance(2);
-                builder.append(input,0,2);
             } else {
-                /* TODO: recover from error(exponent - current char)
-                   treat e|E as the start of the next token
-                   (missed whitespace)
-                   OR
-                   synchronization symbol - whitespace
+                /* synchronization symbol - e|E,
+                   it is the start of the next token
+                   as if a whitespace was missed
                 */
-                //throw new UnexpectedSymbolException(input[0]);
-                result.add(new Token(Token.Type.unidentified, builder.toString()));
+                diagnose(cursor.offset(), "Malformed exponent");
+                emit(Token.Type.unidentified);
                 return;
             }
-            while (isDigit(input[0]) && !isEOF()) {
-                builder.append(input[0]);
+            while (isDigit(input(0)) && !isEOF()) {
                 advance(1);
             }
         }
-        result.add(new Token(Token.Type.numericConstant, builder.toString()));
+        emit(Token.Type.numericConstant);
     }
 
-    private void lexConstructorOrQualifier(String qualifier) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        if (qualifier != null)
-            builder.append(qualifier);
-        while (!isEOF() && isIdentifier(input[0])) {
-            builder.append(input[0]);
-            advance(1);
+    private void lexConstructorOrQualifier() throws IOException {
+        // absorb the uppercase character
+        advanceName();
+        while (!isEOF() && isIdentifier(input(0))) {
+            advanceName();
         }
 
-        if (is('.') && curInputLength > 1) {
-            builder.append(input[0]);
-            advance(1);
-            if (Character.isLowerCase(input[0]) || input[0] == '_') {
-                // qualified variable identifier
-                while (!isEOF() && isIdentifier(input[0])) {
-                    builder.append(input[0]);
-                    advance(1);
-                }
-                result.add(new Token(Token.Type.identifier, builder.toString()));
-            } else if (Character.isUpperCase(input[0])) {
-                // another qualifier or constructor identifier
-                lexConstructorOrQualifier(builder.toString());
-            } else if (isSymbol(input[0])) {
-                // qualified operator
-                while (!isEOF() && isSymbol(input[0])) {
-                    builder.append(input[0]);
-                    advance(1);
-                }
-                result.add(new Token(Token.Type.operator, builder.toString()));
+        char next = input(1);
+        if (is('.') && isSmall(next)) {
+            // qualified variable identifier
+            advanceName();
+            while (!isEOF() && isIdentifier(input(0))) {
+                advanceName();
             }
+            emitName(Token.Type.identifier);
+        } else if (is('.') && isUpper(next)) {
+            // another qualifier or constructor identifier
+            advanceName();
+            lexConstructorOrQualifier();
+        } else if (is('.') && isSymbol(next) && cursor.has(2)) {
+            // qualified operator
+            advanceName();
+            while (!isEOF() && isSymbol(input(0))) {
+                advanceName();
+            }
+            emitName(Token.Type.operator);
         } else {
-            // constructor identifier
-            result.add(new Token(Token.Type.identifier, builder.toString()));
+            // constructor identifier, the dot if any is the next token
+            emitName(Token.Type.identifier);
         }
     }
 
     private void lexKeywordOrIdentifier() throws IOException{
-        StringBuilder builder = new StringBuilder();
-
-        while (isIdentifier(input[0]) && !isEOF()) {
-            builder.append(input[0]);
-            advance(1);
+        // absorb the lowercase character
+        advanceName();
+        while (isIdentifier(input(0)) && !isEOF()) {
+            advanceName();
         }
 
-        String word = builder.toString();
-        if (reservedIds.contains(word)
-                || specialVarIds.contains(word)) {
-            result.add(new Token(Token.Type.keyword, word));
+        if (isKeyword()) {
+            emitName(Token.Type.keyword);
         } else {
-            result.add(new Token(Token.Type.identifier, word));
+            emitName(Token.Type.identifier);
         }
 
     }
 
-    private void lexOperator() throws IOException{
-        StringBuilder builder = new StringBuilder();
+    /**
+     * checks whether the word from the mark up to the current position
+     * is a keyword, without creating a string for it
+     */
+    private boolean isKeyword() {
+        return keywords.matches(cursor.buffer(), cursor.markIndex(),
+                cursor.offset() - cursor.markedOffset());
+    }
 
-        while (isSymbol(input[0]) && !isEOF()) {
-            builder.append(input[0]);
-            advance(1);
+    private void lexOperator() throws IOException{
+        while (isSymbol(input(0)) && !isEOF()) {
+            advanceName();
         }
 
-        result.add(new Token(Token.Type.operator, builder.toString()));
+        emitName(Token.Type.operator);
     }
 
     private void lexChar() throws IOException, UnexpectedSymbolException {
-        StringBuilder builder = new StringBuilder();
-
         // absorb '
-        builder.append(input[0]);
         advance(1);
 
+        literal.setLength(0);
+
         // between ' and '
         if (isEOF()) {
-            throw new UnexpectedSymbolException("EOF before character constant closed");
+            fail("EOF before character constant closed");
+            emit(Token.Type.unidentified);
+            return;
         } else if (is('\\')) {
-            lexEscape(builder);
+            if (!lexEscape()) {
+                // synchronization symbol - '
+                skipLiteral('\'');
+                emit(Token.Type.unidentified);
+                return;
+            }
         } else {
-            builder.append(input[0]);
+            if (isDecoding()) {
+                literal.append(input(0));
+            }
             advance(1);
         }
 
         // closing '
         if (is('\'')) {
-            builder.append(input[0]);
             advance(1);
-            result.add(new Token(Token.Type.symbolicConstant, builder.toString()));
+            emitLiteral();
         } else {
-            /* TODO: recover from error(missed closing ' : current char)
-               result.add(new Token(Token.Type.unidentified, builder.toString()));
-               we do not absorb current char and treat it as the start of the next token
+            /* we do not absorb current char and treat it as the start of the next token
                synchronization symbol - current char
             */
-            //throw new UnexpectedSymbolException(input[0]);
-            result.add(new Token(Token.Type.unidentified, builder.toString()));
+            diagnose(cursor.offset(), "Missing closing '");
+            emit(Token.Type.unidentified);
         }
     }
 
     private void lexString() throws IOException, UnexpectedSymbolException {
-        StringBuilder builder = new StringBuilder();
-
         // absorb "
-        builder.append(input[0]);
         advance(1);
+        literal.setLength(0);
 
         for(;;) {
             if (isEOF()) {
-                throw new UnexpectedSymbolException("EOF before string constant closed");
+                fail("EOF before string constant closed");
+                emit(Token.Type.unidentified);
+                return;
+            } else if (recovering && is('\n')) {
+                // synchronization symbol - line break, which is not allowed in a string
+                diagnose(cursor.offset(), "Line break in string constant");
+                emit(Token.Type.unidentified);
+                return;
             } else if (is('\\','&')) {
                 // null symbol
-                builder.append(input,0,2);
                 advance(2);
             } else if (is('\\')
-                    && curInputLength > 1
-                    && Character.isWhitespace(input[1])) {
+                    && cursor.has(2)
+                    && isWhitespace(input(1))) {
                 // gap
-                StringBuilder gapTempBuilder = new StringBuilder();
-                gapTempBuilder.append(input,0,2);
                 advance(2);
-                while (Character.isWhitespace(input[0]) && !isEOF()) {
-                    advance(1);
-                    gapTempBuilder.append(input[0]);
-                }
+                cursor.skipWhitespace();
                 if (is('\\')) {
                     advance(1);
                 } else {
-                    /* TODO: recover from error (gap: ")
-                       continue to lex new token after "
+                    /* continue to lex new token after "
                        synchronization symbol - "
                      */
-                    //throw new UnexpectedSymbolException(input[0]);
-                    builder.append(gapTempBuilder);
+                    diagnose(cursor.offset(), "Malformed string gap");
                     while (!isEOF() && !is('\"')) {
                         if (is('\\','"')) {
-                            builder.append(input,0,2);
                             advance(2);
                         } else {
-                            builder.append(input[0]);
                             advance(1);
                         }
                     }
                     if(!isEOF()) {
-                        builder.append(input[0]);
                         advance(1);
                     }
-                    result.add(new Token(Token.Type.unidentified, builder.toString()));
+                    emit(Token.Type.unidentified);
                     return;
                 }
-            } else if (is('\\') && curInputLength > 1) {
+            } else if (is('\\') && cursor.has(2)) {
                 // escape sequence
-                lexEscape(builder);
+                if (!lexEscape()) {
+                    // synchronization symbol - "
+                    skipLiteral('\"');
+                    emit(Token.Type.unidentified);
+                    return;
+                }
             } else if (is('\"')) {
                 // end of string literal
-                builder.append(input[0]);
                 advance(1);
-                result.add(new Token(
-                        Token.Type.symbolicConstant, builder.toString()));
+                emitLiteral();
                 return;
-            } else {
+            } else if (isDecoding()) {
                 // a character
-                builder.append(input[0]);
+                literal.append(input(0));
+                advance(1);
+            } else {
+                // the characters up to the next quote, escape or line break
                 advance(1);
+                cursor.skipTo('\"', '\\', '\n');
             }
 
         }
     }
 
-    private void lexEscape(StringBuilder builder) throws IOException, UnexpectedSymbolException {
+    /**
+     * lexes the escape sequence starting with the backslash
+     *
+     * @return if the escape sequence is legal, the caller recovers otherwise
+     */
+    private boolean lexEscape() throws IOException, UnexpectedSymbolException {
         // escape sequences
-        builder.append(input[0]);
         advance(1);
         if (isEOF()) {
-            throw new UnexpectedSymbolException("EOF before character constant closed");
-        } else if (is('a') || is('b') || is('f') || is('r') || is('n')
-                || is('t') || is('v') || is('\\') || is('\"') || is('\'')) {
-            builder.append(input[0]);
-            advance(1);
-        } else if (is('^') && curInputLength > 1 ) {
-            builder.append(input,0,2);
-            advance(2);
-        } else if (is('N','U','L') || is('S','O','H') || is('S','T','X')
-                || is('E','T','X') || is('E','O','T') || is('E','N','Q')
-                || is('A','C','K') || is('B','E','L') || is('D','L','E')
-                || is('D','C','1') || is('D','C','2') || is('D','C','3')
-                || is('D','C','4') || is('N','A','K') || is('S','Y','N')
-                || is('E','T','B') || is('C','A','N') || is('S','U','B')
-                || is('E','S','C') || is('D','E','L')) {
-            builder.append(input,0,3);
-            advance(3);
-        } else if (is('B','S') || is('H','T') || is('L','F') || is('V','T')
-                || is('F','F') || is('C','R') || is('S','0') || is('S','I')
-                || is('E','M') || is('F','S') || is('G','S') || is('R','S')
-                || is('U','S') || is('S','P')) {
-            builder.append(input,0,2);
-            advance(2);
-        } else if (is('0')
-                && curInputLength > 2
-                && Character.toLowerCase(input[1]) == 'o'
-                && isOctDigit(input[2])) {
-            builder.append(input, 0, 3);
-            advance(3);
-            while (!isEOF() && isOctDigit(input[0])) {
-                builder.append(input[0]);
-                advance(1);
-            }
-        } else if (is('0')
-                && curInputLength > 2
-                && Character.toLowerCase(input[1]) == 'x'
-                && isHexDigit(input[2])) {
-            builder.append(input, 0, 3);
-            advance(3);
-            while (!isEOF() && isHexDigit(input[0])) {
-                builder.append(input[0]);
-                advance(1);
-            }
-        } else if (isDigit(input[0])) {
-            while (!isEOF() && isDigit(input[0])) {
-                builder.append(input[0]);
-                advance(1);
-            }
-        } else {
-            throw new UnexpectedSymbolException("Illegal escape sequence");
-            /* TODO: recover from error (escape seq: " | ')
-               catch this exception in lexString and lexChar methods
-               continue to lex next token after meeting " or '
-               synchronization symbols - " and ' respectively
-            */
+            fail("EOF before character constant closed");
+            return false;
+        }
+        long escape = EscapeDecoder.match(cursor);
+        if (escape == EscapeDecoder.NO_MATCH) {
+            fail("Illegal escape sequence");
+            return false;
+        }
+        if (isDecoding()) {
+            literal.appendCodePoint(EscapeDecoder.codePoint(escape));
         }
+        advance(EscapeDecoder.length(escape));
+        return true;
     }
 
 }
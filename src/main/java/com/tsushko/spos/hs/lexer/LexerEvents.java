@@ -0,0 +1,135 @@
+package com.tsushko.spos.hs.lexer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Threshold;
+
+/**
+ * Defines the Java Flight Recorder events of the lexer.
+ * This is the only class referring to the recorder, it is loaded
+ * when the recording of events is enabled in {@link LexerStats}.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+final class LexerEvents {
+
+    @Name("com.tsushko.spos.hs.lexer.Token")
+    @Label("Haskell Token")
+    @Category("Haskell Lexer")
+    @Description("A token that took long to lex")
+    @Threshold("1 ms")
+    static class TokenEvent extends Event {
+        @Label("State")
+        String state;
+
+        @Label("Start")
+        @Description("The offset of the token in its document")
+        int start;
+
+        @Label("Characters")
+        int characters;
+    }
+
+    @Name("com.tsushko.spos.hs.lexer.Statistics")
+    @Label("Haskell Lexer Statistics")
+    @Category("Haskell Lexer")
+    @Period("1 s")
+    static class StatisticsEvent extends Event {
+        @Label("Lexer")
+        @Description("The identity of the statistics object")
+        int lexer;
+
+        @Label("Tokens")
+        long tokens;
+
+        @Label("Characters")
+        long characters;
+
+        @Label("Throughput")
+        @Description("Characters lexed per second")
+        double throughput;
+
+        @Label("Comment Characters")
+        long commentCharacters;
+
+        @Label("String Characters")
+        long stringCharacters;
+
+        @Label("Name Characters")
+        @Description("Characters of identifiers, keywords and operators")
+        long nameCharacters;
+    }
+
+    private LexerEvents() {
+        // no instances
+    }
+
+    /**
+     * starts timing a token
+     *
+     * @return the event to pass to {@link #commit}
+     */
+    static Object begin() {
+        TokenEvent event = new TokenEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * stops timing the token and records it if it took
+     * longer than the threshold
+     */
+    static void commit(Object begun, LexerStats.State state,
+                       int start, int characters) {
+        TokenEvent event = (TokenEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.state = state.name();
+            event.start = start;
+            event.characters = characters;
+            event.commit();
+        }
+    }
+
+    /**
+     * starts reporting the statistics periodically, from the counters
+     * the lexer publishes for the thread of the recorder
+     *
+     * @return the hook to pass to {@link #unregister}
+     */
+    static Object register(final LexerStats stats) {
+        Runnable hook = () -> {
+            StatisticsEvent event = new StatisticsEvent();
+            event.lexer = System.identityHashCode(stats);
+            event.tokens = stats.getPublishedTokens();
+            event.throughput = stats.getPublishedThroughput();
+            for (LexerStats.State state : LexerStats.State.values()) {
+                event.characters += stats.getPublishedCharacters(state);
+            }
+            event.commentCharacters =
+                    stats.getPublishedCharacters(LexerStats.State.nestedComment)
+                    + stats.getPublishedCharacters(LexerStats.State.dashes)
+                    + stats.getPublishedCharacters(LexerStats.State.pragma);
+            event.stringCharacters =
+                    stats.getPublishedCharacters(LexerStats.State.string)
+                    + stats.getPublishedCharacters(LexerStats.State.character);
+            event.nameCharacters =
+                    stats.getPublishedCharacters(LexerStats.State.keywordOrIdentifier)
+                    + stats.getPublishedCharacters(LexerStats.State.constructorOrQualifier)
+                    + stats.getPublishedCharacters(LexerStats.State.operator);
+            event.commit();
+        };
+        FlightRecorder.addPeriodicEvent(StatisticsEvent.class, hook);
+        return hook;
+    }
+
+    static void unregister(Object hook) {
+        FlightRecorder.removePeriodicEvent((Runnable) hook);
+    }
+}
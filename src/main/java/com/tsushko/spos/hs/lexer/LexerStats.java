@@ -0,0 +1,390 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the metrics of a lexer: the number of tokens of every type,
+ * the characters consumed and the time spent in every lexing state,
+ * and the largest tokens seen.
+ * <p>
+ * The statistics are collected only while they are set on a lexer,
+ * see {@link Lexer#setStats(LexerStats)}, and keep accumulating over
+ * all documents the lexer lexes until {@link #reset()} is called.
+ * The object is not thread-safe, every lexer needs its own one;
+ * the statistics of several lexers may be combined with {@link #add}.
+ * <p>
+ * When {@link #setRecordingEvents(boolean) recording events} is enabled,
+ * the lexer also emits Java Flight Recorder events for its tokens
+ * and the statistics are reported periodically to the recording.
+ * The periodic event runs on the thread of the recorder, so while
+ * recording the lexer also publishes a copy of every counter it updates,
+ * which is the only state the event reads.
+ * The Flight Recorder classes are only loaded when the recording
+ * is enabled, so the statistics work on runtimes without them.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see LexerEvents
+ */
+public class LexerStats {
+    /**
+     * the number of the largest tokens kept
+     */
+    public static final int LARGEST_TOKENS = 10;
+
+    /**
+     * the state of the lexer a token is lexed in
+     */
+    public static enum State {
+        whitespace,
+        nestedComment,
+        pragma,
+        dashes,
+        punctuation,
+        operator,
+        octal,
+        hexadecimal,
+        decimalOrFloat,
+        constructorOrQualifier,
+        keywordOrIdentifier,
+        character,
+        string,
+        unexpected
+    }
+
+    /**
+     * a token among the largest ones
+     */
+    public static class LargeToken {
+        private final Token.Type type;
+        private final int start;
+        private final int length;
+
+        LargeToken(Token.Type type, int start, int length) {
+            this.type = type;
+            this.start = start;
+            this.length = length;
+        }
+
+        public Token.Type getType() {
+            return type;
+        }
+
+        /**
+         * returns the offset of the token in its document
+         */
+        public int getStart() {
+            return start;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + type + ", " + start + "+" + length + "]";
+        }
+    }
+
+    private static final State[] STATES = State.values();
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    private final long[] tokens = new long[TYPES.length];
+    private final long[] characters = new long[STATES.length];
+    private final long[] nanos = new long[STATES.length];
+    private final long[] visits = new long[STATES.length];
+    private final LargeToken[] largest = new LargeToken[LARGEST_TOKENS];
+    private int largestCount = 0;
+    private volatile boolean recordingEvents = false;
+    /**
+     * the copies of the counters read by the periodic event, updated
+     * by the lexing thread only while recording events
+     */
+    private final AtomicLongArray publishedTokens = new AtomicLongArray(TYPES.length);
+    private final AtomicLongArray publishedCharacters = new AtomicLongArray(STATES.length);
+    private final AtomicLongArray publishedNanos = new AtomicLongArray(STATES.length);
+    /**
+     * the hook reporting the statistics to the flight recorder,
+     * typed as object so the recorder classes are not loaded with this one
+     */
+    private Object periodicEvent = null;
+
+    /**
+     * Sets whether the Java Flight Recorder events are emitted:
+     * an event for every token lexed longer than the threshold of
+     * the recording, and a periodic event with these statistics.
+     * Should be called from the thread that lexes or before lexing starts,
+     * as the counters are copied for the periodic event here.
+     * <p>
+     * The periodic event is registered with the recorder until the recording
+     * is disabled again, and the recorder keeps these statistics reachable
+     * until then, so disable it once the lexer is no longer used.
+     *
+     * @param recordingEvents if the events should be emitted
+     * @throws UnsupportedOperationException if the runtime has no
+     *         flight recorder
+     */
+    public synchronized void setRecordingEvents(boolean recordingEvents) {
+        if (recordingEvents == this.recordingEvents) {
+            return;
+        }
+        if (recordingEvents) {
+            if (!isFlightRecorderAvailable()) {
+                throw new UnsupportedOperationException(
+                        "Java Flight Recorder is not available");
+            }
+            publishAll();
+            periodicEvent = LexerEvents.register(this);
+        } else {
+            LexerEvents.unregister(periodicEvent);
+            periodicEvent = null;
+        }
+        this.recordingEvents = recordingEvents;
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    public boolean isRecordingEvents() {
+        return recordingEvents;
+    }
+
+    /**
+     * counts the token emitted by the lexer
+     */
+    void token(Token.Type type, int start, int end) {
+        int i = type.ordinal();
+        ++tokens[i];
+        if (recordingEvents) {
+            publishedTokens.lazySet(i, tokens[i]);
+        }
+        int length = end - start;
+        if (largestCount < LARGEST_TOKENS
+                || length > largest[LARGEST_TOKENS - 1].length) {
+            insertLargest(new LargeToken(type, start, length));
+        }
+    }
+
+    /**
+     * counts the characters consumed and the time spent in the state
+     */
+    void state(State state, int characters, long nanos) {
+        int i = state.ordinal();
+        this.characters[i] += characters;
+        this.nanos[i] += nanos;
+        ++visits[i];
+        if (recordingEvents) {
+            publishedCharacters.lazySet(i, this.characters[i]);
+            publishedNanos.lazySet(i, this.nanos[i]);
+        }
+    }
+
+    /**
+     * copies all counters for the periodic event
+     */
+    private void publishAll() {
+        for (int i = 0; i < tokens.length; i++) {
+            publishedTokens.lazySet(i, tokens[i]);
+        }
+        for (int i = 0; i < characters.length; i++) {
+            publishedCharacters.lazySet(i, characters[i]);
+            publishedNanos.lazySet(i, nanos[i]);
+        }
+    }
+
+    /**
+     * returns the number of tokens of all types last published
+     * for the periodic event, safe to call from any thread
+     */
+    long getPublishedTokens() {
+        long total = 0;
+        for (int i = 0; i < publishedTokens.length(); i++) {
+            total += publishedTokens.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * returns the number of characters consumed in the state last
+     * published for the periodic event, safe to call from any thread
+     */
+    long getPublishedCharacters(State state) {
+        return publishedCharacters.get(state.ordinal());
+    }
+
+    /**
+     * returns the throughput computed from the counters last published
+     * for the periodic event, safe to call from any thread
+     */
+    double getPublishedThroughput() {
+        long characters = 0;
+        long time = 0;
+        for (int i = 0; i < STATES.length; i++) {
+            characters += publishedCharacters.get(i);
+            time += publishedNanos.get(i);
+        }
+        return time == 0 ? 0 : characters * 1e9 / time;
+    }
+
+    private void insertLargest(LargeToken token) {
+        int i = Math.min(largestCount, LARGEST_TOKENS - 1);
+        while (i > 0 && largest[i - 1].length < token.length) {
+            largest[i] = largest[i - 1];
+            --i;
+        }
+        largest[i] = token;
+        largestCount = Math.min(largestCount + 1, LARGEST_TOKENS);
+    }
+
+    /**
+     * returns the number of tokens of the type emitted
+     */
+    public long getTokens(Token.Type type) {
+        return tokens[type.ordinal()];
+    }
+
+    /**
+     * returns the number of tokens of all types emitted
+     */
+    public long getTokens() {
+        long total = 0;
+        for (long count : tokens) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * returns the number of characters consumed in the state
+     */
+    public long getCharacters(State state) {
+        return characters[state.ordinal()];
+    }
+
+    /**
+     * returns the number of characters consumed in all states
+     */
+    public long getCharacters() {
+        long total = 0;
+        for (long count : characters) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * returns the number of times the lexer entered the state
+     */
+    public long getVisits(State state) {
+        return visits[state.ordinal()];
+    }
+
+    /**
+     * returns the time spent in the state, in nanoseconds
+     */
+    public long getNanos(State state) {
+        return nanos[state.ordinal()];
+    }
+
+    /**
+     * returns the time spent in all states, in nanoseconds
+     */
+    public long getNanos() {
+        long total = 0;
+        for (long time : nanos) {
+            total += time;
+        }
+        return total;
+    }
+
+    /**
+     * returns the number of characters lexed per second
+     * of the time spent in the lexing states
+     */
+    public double getThroughput() {
+        long time = getNanos();
+        return time == 0 ? 0 : getCharacters() * 1e9 / time;
+    }
+
+    /**
+     * returns the largest tokens, the largest first
+     */
+    public List<LargeToken> getLargestTokens() {
+        List<LargeToken> list = new ArrayList<>(largestCount);
+        for (int i = 0; i < largestCount; i++) {
+            list.add(largest[i]);
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * adds the statistics collected by another lexer to these ones
+     */
+    public void add(LexerStats other) {
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] += other.tokens[i];
+        }
+        for (int i = 0; i < characters.length; i++) {
+            characters[i] += other.characters[i];
+            nanos[i] += other.nanos[i];
+            visits[i] += other.visits[i];
+        }
+        for (int i = 0; i < other.largestCount; i++) {
+            LargeToken token = other.largest[i];
+            if (largestCount < LARGEST_TOKENS
+                    || token.length > largest[LARGEST_TOKENS - 1].length) {
+                insertLargest(token);
+            }
+        }
+        if (recordingEvents) {
+            publishAll();
+        }
+    }
+
+    /**
+     * clears all statistics collected so far
+     */
+    public void reset() {
+        Arrays.fill(tokens, 0);
+        Arrays.fill(characters, 0);
+        Arrays.fill(nanos, 0);
+        Arrays.fill(visits, 0);
+        Arrays.fill(largest, null);
+        largestCount = 0;
+        if (recordingEvents) {
+            publishAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%d tokens, %d characters, %.1f characters/s%n",
+                getTokens(), getCharacters(), getThroughput()));
+        for (Token.Type type : TYPES) {
+            if (getTokens(type) != 0) {
+                out.append(String.format("  %-22s %12d tokens%n",
+                        type, getTokens(type)));
+            }
+        }
+        for (State state : STATES) {
+            if (getVisits(state) != 0) {
+                out.append(String.format("  %-22s %12d characters %12d us%n",
+                        state, getCharacters(state), getNanos(state) / 1000));
+            }
+        }
+        out.append("  largest tokens: ").append(getLargestTokens());
+        return out.toString();
+    }
+}
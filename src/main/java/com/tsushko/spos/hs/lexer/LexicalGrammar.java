@@ -0,0 +1,255 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static com.tsushko.spos.hs.lexer.Regex.alt;
+import static com.tsushko.spos.hs.lexer.Regex.chars;
+import static com.tsushko.spos.hs.lexer.Regex.literal;
+import static com.tsushko.spos.hs.lexer.Regex.opt;
+import static com.tsushko.spos.hs.lexer.Regex.plus;
+import static com.tsushko.spos.hs.lexer.Regex.seq;
+import static com.tsushko.spos.hs.lexer.Regex.set;
+import static com.tsushko.spos.hs.lexer.Regex.star;
+
+/**
+ * The lexical grammar of the Rules file as regular expressions, compiled
+ * into the automaton of the table driven lexer when the class is loaded,
+ * see {@link Lexer#setTableDriven(boolean)}.
+ * <p>
+ * The expressions accept what the hand-written states of the lexer accept,
+ * so both engines produce the same tokens: the characters are classified
+ * by {@link CharClass}, literals may hold any character and the names are
+ * scanned the way {@link Lexer} scans them. The nested comments are not
+ * regular, and the malformed tokens need the diagnostics of the hand-written
+ * states, so the {@link Rule#fallback} rules match the prefixes of those
+ * and leave them to the hand-written states.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see DfaBuilder
+ */
+final class LexicalGrammar {
+    static final Rule[] RULES;
+    static final Dfa DFA;
+
+    /**
+     * the kinds of the tokens the rules match
+     */
+    enum Rule {
+        fallback(null, null),
+        whitespace(null, LexerStats.State.whitespace),
+        comment(Token.Type.comment, LexerStats.State.dashes),
+        keyword(Token.Type.keyword, LexerStats.State.keywordOrIdentifier),
+        identifier(Token.Type.identifier, LexerStats.State.keywordOrIdentifier),
+        qualifiedName(Token.Type.identifier, LexerStats.State.constructorOrQualifier),
+        qualifiedOperator(Token.Type.operator, LexerStats.State.constructorOrQualifier),
+        dashedOperator(Token.Type.operator, LexerStats.State.dashes),
+        operator(Token.Type.operator, LexerStats.State.operator),
+        punctuation(Token.Type.punctuation, LexerStats.State.punctuation),
+        octal(Token.Type.numericConstant, LexerStats.State.octal),
+        hexadecimal(Token.Type.numericConstant, LexerStats.State.hexadecimal),
+        decimalOrFloat(Token.Type.numericConstant, LexerStats.State.decimalOrFloat),
+        character(Token.Type.symbolicConstant, LexerStats.State.character),
+        string(Token.Type.symbolicConstant, LexerStats.State.string);
+
+        final Token.Type type;
+        final LexerStats.State state;
+
+        Rule(Token.Type type, LexerStats.State state) {
+            this.type = type;
+            this.state = state;
+        }
+
+        /**
+         * returns the number of the characters matched past the end
+         * of the token, which the token does not include
+         */
+        int trailing() {
+            return this == comment ? 1 : 0;
+        }
+
+        /**
+         * checks whether the token is interned by the symbol table
+         */
+        boolean isName() {
+            return type == Token.Type.keyword || type == Token.Type.identifier
+                    || type == Token.Type.operator;
+        }
+
+        boolean isLiteral() {
+            return type == Token.Type.symbolicConstant;
+        }
+    }
+
+    static {
+        BitSet any = new BitSet(Regex.SYMBOLS);
+        any.set(0, Regex.SYMBOLS);
+        BitSet whitechar = flags(CharClass.WHITESPACE);
+        BitSet small = flags(CharClass.SMALL);
+        BitSet large = flags(CharClass.UPPER);
+        BitSet symbol = flags(CharClass.SYMBOL);
+        BitSet digit = flags(CharClass.DIGIT);
+        BitSet octit = flags(CharClass.OCTAL);
+        BitSet hexit = flags(CharClass.HEX);
+        BitSet identifier = flags(CharClass.IDENTIFIER);
+        BitSet notNewline = minus(any, symbols("\n"));
+
+        Regex ident = star(set(identifier));
+        Regex dashes = seq(literal("--"), star(chars("-")));
+        Regex conid = seq(set(kind(CharClass.KIND_UPPER)), ident);
+        // modid . conid, the small letters are checked first
+        Regex qualifier = seq(conid, star(seq(chars("."), set(minus(large, small)), ident)));
+        Regex decimal = seq(set(kind(CharClass.KIND_DIGIT)), star(set(digit)));
+        Regex fraction = seq(chars("."), plus(set(digit)));
+        Regex exponent = seq(chars("eE"), opt(chars("+-")), plus(set(digit)));
+
+        List<Regex> names = new ArrayList<>();
+        for (String name : new String[] {
+                "NUL", "SOH", "STX", "ETX", "EOT", "ENQ", "ACK", "BEL",
+                "BS", "HT", "LF", "VT", "FF", "CR", "SO", "SI",
+                "DLE", "DC1", "DC2", "DC3", "DC4", "NAK", "SYN", "ETB",
+                "CAN", "EM", "SUB", "ESC", "FS", "GS", "RS", "US", "SP", "DEL"}) {
+            names.add(literal(name));
+        }
+        Regex ascii = alt(alt(names.toArray(new Regex[0])),
+                seq(chars("^"), chars("ABCDEFGHIJKLMNOPQRSTUVWXYZ@[\\]^_")));
+        Regex escape = alt(chars("abfnrtv\\\"'"), ascii);
+        // the value of a numeric escape must be a code point, which is checked by the lexer
+        Regex numericEscape = alt(plus(set(digit)),
+                seq(chars("o"), plus(set(octit))), seq(chars("x"), plus(set(hexit))));
+        Regex gap = seq(chars("\\"), plus(set(whitechar)), chars("\\"));
+
+        Set<String> keywords = new TreeSet<>(Lexer.reservedIds);
+        keywords.addAll(Lexer.specialVarIds);
+        List<Regex> reservedIds = new ArrayList<>();
+        for (String keyword : keywords) {
+            reservedIds.add(literal(keyword));
+        }
+
+        DfaBuilder builder = new DfaBuilder();
+        List<Rule> rules = new ArrayList<>();
+        // ncomment and pragma
+        add(builder, rules, Rule.fallback, literal("{-"));
+        // dashes up to the end of file
+        add(builder, rules, Rule.fallback, dashes);
+        add(builder, rules, Rule.fallback, seq(dashes,
+                set(minus(notNewline, symbol)), star(set(notNewline))));
+        // malformed exponent
+        add(builder, rules, Rule.fallback, seq(decimal, opt(fraction),
+                chars("eE"), opt(chars("+-"))));
+        // small letter following the qualifier, which is not a part of identifier
+        add(builder, rules, Rule.fallback, seq(qualifier, chars("."),
+                set(minus(small, identifier))));
+        // comment, the terminating newline is not a part of it
+        add(builder, rules, Rule.comment, seq(dashes,
+                opt(seq(set(minus(notNewline, symbol)), star(set(notNewline)))),
+                chars("\n")));
+        add(builder, rules, Rule.keyword, alt(reservedIds.toArray(new Regex[0])));
+        add(builder, rules, Rule.identifier, seq(set(kind(CharClass.KIND_SMALL)), ident));
+        // qvarid and qconid
+        add(builder, rules, Rule.qualifiedName, seq(qualifier,
+                opt(seq(chars("."), set(and(small, identifier)), ident))));
+        // qvarsym and qconsym
+        BitSet operatorStart = minus(minus(symbol, small), large);
+        add(builder, rules, Rule.qualifiedOperator, seq(qualifier, chars("."),
+                set(operatorStart), star(set(symbol))));
+        add(builder, rules, Rule.dashedOperator, seq(literal("--"), star(set(symbol))));
+        add(builder, rules, Rule.operator,
+                seq(set(kind(CharClass.KIND_SYMBOL)), star(set(symbol))));
+        add(builder, rules, Rule.punctuation, set(kind(CharClass.KIND_SPECIAL)));
+        add(builder, rules, Rule.octal, seq(chars("0"), chars("oO"), plus(set(octit))));
+        add(builder, rules, Rule.hexadecimal, seq(chars("0"), chars("xX"), plus(set(hexit))));
+        add(builder, rules, Rule.decimalOrFloat,
+                seq(decimal, opt(fraction), opt(exponent)));
+        add(builder, rules, Rule.character, alt(
+                seq(chars("'"), set(minus(any, symbols("\\"))), chars("'")),
+                seq(chars("'"), chars("\\"), escape, chars("'"))));
+        add(builder, rules, Rule.string, seq(chars("\""), star(alt(
+                set(minus(any, symbols("\"\\\n"))),
+                seq(chars("\\"), escape), literal("\\&"), gap)), chars("\"")));
+        // numeric escapes and line breaks in literals
+        add(builder, rules, Rule.fallback,
+                seq(chars("'"), chars("\\"), numericEscape, chars("'")));
+        add(builder, rules, Rule.fallback, seq(chars("\""), star(alt(
+                set(minus(any, symbols("\"\\"))),
+                seq(chars("\\"), alt(escape, numericEscape)), literal("\\&"), gap)),
+                chars("\"")));
+        add(builder, rules, Rule.whitespace,
+                seq(set(kind(CharClass.KIND_WHITESPACE)), star(set(whitechar))));
+        RULES = rules.toArray(new Rule[0]);
+        DFA = builder.build();
+    }
+
+    private LexicalGrammar() {
+        // static tables only
+    }
+
+    private static void add(DfaBuilder builder, List<Rule> rules,
+                            Rule rule, Regex regex) {
+        builder.add(regex);
+        rules.add(rule);
+    }
+
+    /**
+     * returns the symbols of the characters with any of the property flags
+     */
+    private static BitSet flags(int flags) {
+        BitSet symbols = new BitSet(Regex.SYMBOLS);
+        for (char c = 0; c < Regex.ASCII; c++) {
+            if (CharClass.is(c, flags)) {
+                symbols.set(c);
+            }
+        }
+        for (int index = 0; index < CharClass.indices(); index++) {
+            if (CharClass.indexIs(index, flags)) {
+                symbols.set(Regex.ASCII + index);
+            }
+        }
+        return symbols;
+    }
+
+    /**
+     * returns the symbols of the characters of the kind
+     */
+    private static BitSet kind(int kind) {
+        BitSet symbols = new BitSet(Regex.SYMBOLS);
+        for (char c = 0; c < Regex.ASCII; c++) {
+            if (CharClass.kind(c) == kind) {
+                symbols.set(c);
+            }
+        }
+        for (int index = 0; index < CharClass.indices(); index++) {
+            if (CharClass.indexKind(index) == kind) {
+                symbols.set(Regex.ASCII + index);
+            }
+        }
+        return symbols;
+    }
+
+    /**
+     * returns the symbols of the ASCII characters
+     */
+    private static BitSet symbols(String chars) {
+        BitSet symbols = new BitSet(Regex.SYMBOLS);
+        for (int i = 0; i < chars.length(); i++) {
+            symbols.set(chars.charAt(i));
+        }
+        return symbols;
+    }
+
+    private static BitSet minus(BitSet first, BitSet second) {
+        BitSet difference = (BitSet) first.clone();
+        difference.andNot(second);
+        return difference;
+    }
+
+    private static BitSet and(BitSet first, BitSet second) {
+        BitSet intersection = (BitSet) first.clone();
+        intersection.and(second);
+        return intersection;
+    }
+}
@@ -1,24 +1,301 @@
 package com.tsushko.spos.hs.lexer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
  * Lexes the Haskell program file and prints tokens to std output.
  * The input file path must be passed as command line argument.
+ * If a directory is passed instead, all Haskell files found in it
+ * are lexed in parallel and the tokens of every file are printed
+ * after the line with its path.
+ * <p>
+ * The options precede the path:
+ * <ul>
+ * <li>{@code --binary} writes the tokens in the binary format of
+ * {@link TokenStreamWriter}, one document per file;</li>
+ * <li>{@code --cache <directory>} keeps the tokens of the files in the
+ * {@link TokenCache} in the directory, so unchanged files are not lexed
+ * again by the next run;</li>
+ * <li>{@code --daemon} takes no path and serves the requests read from
+ * std input until it ends, see below.</li>
+ * </ul>
+ * <p>
+ * The daemon keeps running between the requests, so they do not pay
+ * for starting the JVM and the lexer runs compiled, with its tables and
+ * the caches loaded. Every request is a line, which may end with CR LF,
+ * followed by the source for the inline requests:
+ * <ul>
+ * <li>{@code path <path>} lexes the file;</li>
+ * <li>{@code source <name> <length>} lexes the following {@code length}
+ * bytes of the source encoded in UTF-8, which may take up to 64 MiB.</li>
+ * </ul>
+ * Every response is written to std output as soon as the request is lexed:
+ * its length as a big-endian int followed by the stream of the binary
+ * format holding the only document, which the client reads with
+ * {@link TokenStreamReader}. The document of a request that failed ends
+ * with the error record; a malformed request is answered with the
+ * document holding only the error record. The daemon stops after
+ * answering the request whose source was cut short by the end of input.
  *
  * @author Artem Tsushko
  * @version 1.0
  */
 public class Main {
+    /**
+     * the size in bytes the cache may take
+     */
+    private static final long CACHE_SIZE = 512L * 1024 * 1024;
+    /**
+     * the size in bytes of the largest source the daemon accepts inline
+     */
+    private static final int MAX_SOURCE_LENGTH = 64 * 1024 * 1024;
+
+    private static boolean binary = false;
+    private static boolean daemon = false;
+    private static TokenCache tokenCache = null;
+
     public static void main(String[] args)
             throws IOException, UnexpectedSymbolException {
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                tokenCache = new TokenCache(new File(args[++i]), CACHE_SIZE);
+            } else if (args[i].equals("--daemon")) {
+                daemon = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (daemon) {
+            serve(System.in, System.out);
+            return;
+        }
+        File file = new File(args[i]);
+        if (binary) {
+            writeBinary(file);
+            return;
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out), 64 * 1024));
+        try {
+            if (file.isDirectory()) {
+                newParallelLexer().forEachFileInTree(file, (source, tokens) -> {
+                    out.println(source + ":");
+                    print(out, tokens);
+                });
+            } else {
+                List<Token> tokens = newLexer().lexDocument(file);
+                print(out, tokens);
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    private static Lexer newLexer() {
         Lexer lexer = new Lexer();
-        File file = new File(args);
-        List<Token> tokens = lexer.lexDocument(file);
+        lexer.setTokenCache(tokenCache);
+        return lexer;
+    }
+
+    private static ParallelLexer newParallelLexer() {
+        ParallelLexer lexer = new ParallelLexer();
+        lexer.setTokenCache(tokenCache);
+        return lexer;
+    }
+
+    private static void print(PrintWriter out, List<Token> tokens) {
         for (Token token : tokens) {
-            System.out.println(token);
+            out.println(token);
+        }
+    }
+
+    /**
+     * writes the tokens of the file or of the files of the directory
+     * to std output in the binary format
+     */
+    private static void writeBinary(File file)
+            throws IOException, UnexpectedSymbolException {
+        TokenStreamWriter writer = new TokenStreamWriter(System.out);
+        try {
+            if (file.isDirectory()) {
+                newParallelLexer().forEachFileInTree(file, (source, tokens) -> {
+                    try {
+                        writer.startDocument(source.getPath());
+                        writer.write(tokens);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } else if (tokenCache != null) {
+                writer.startDocument(file.getPath());
+                writer.write(newLexer().lexDocument(file));
+            } else {
+                writer.startDocument(file.getPath());
+                newLexer().lexDocument(file, writer);
+            }
+            writer.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            // the stream written so far is truncated if lexing failed
+            writer.flush();
+        }
+    }
+
+    /**
+     * lexes the requested documents until the end of the requests,
+     * writing the response to every request as soon as it is lexed
+     */
+    static void serve(InputStream in, OutputStream out) throws IOException {
+        InputStream requests = new BufferedInputStream(in);
+        DataOutputStream responses = new DataOutputStream(out);
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        Lexer lexer = newLexer();
+        String request;
+        boolean truncated = false;
+        while (!truncated && (request = readLine(requests)) != null) {
+            if (request.isEmpty()) {
+                continue;
+            }
+            response.reset();
+            TokenStreamWriter writer = new TokenStreamWriter(response);
+            String[] words = request.split(" ");
+            if (words[0].equals("path") && words.length > 1) {
+                String path = request.substring("path ".length());
+                writer.startDocument(path);
+                try {
+                    lexFile(lexer, new File(path), writer);
+                } catch (IOException | UnexpectedSymbolException | RuntimeException e) {
+                    writer.error(e.toString());
+                }
+            } else if (words[0].equals("source") && words.length == 3
+                    && parseLength(words[2]) >= 0) {
+                int length = parseLength(words[2]);
+                writer.startDocument(words[1]);
+                try {
+                    if (length > MAX_SOURCE_LENGTH) {
+                        skipFully(requests, length);
+                        writer.error("Source is larger than " + MAX_SOURCE_LENGTH + " bytes");
+                    } else {
+                        byte[] source = readFully(requests, length);
+                        try {
+                            writer.write(lexer.lexDocument(ByteBuffer.wrap(source)));
+                        } catch (UnexpectedSymbolException | RuntimeException e) {
+                            writer.error(e.toString());
+                        }
+                    }
+                } catch (EOFException e) {
+                    // the requests ended within the source, it is the last response
+                    writer.error(e.getMessage());
+                    truncated = true;
+                }
+            } else {
+                writer.startDocument("");
+                writer.error("Malformed request " + request);
+            }
+            lexer.reset();
+            writer.finish();
+            responses.writeInt(response.size());
+            response.writeTo(responses);
+            responses.flush();
+        }
+    }
+
+    /**
+     * lexes the file into the writer, through the cache if there is one
+     */
+    private static void lexFile(Lexer lexer, File file, TokenStreamWriter writer)
+            throws IOException, UnexpectedSymbolException {
+        if (tokenCache == null) {
+            lexer.lexDocument(file, writer);
+            return;
+        }
+        List<Token> tokens = lexer.lexDocument(file);
+        if (tokens == null) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        writer.write(tokens);
+    }
+
+    /**
+     * reads the line of the request up to the line feed
+     *
+     * @return the line without the line feed and the carriage return
+     *         preceding it, or null at the end of input
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                break;
+            }
+            line.write(b);
+        }
+        String request = line.toString("UTF-8");
+        return request.endsWith("\r")
+                ? request.substring(0, request.length() - 1) : request;
+    }
+
+    /**
+     * parses the length of the inline source
+     *
+     * @return the length or -1 if it is not a non-negative int
+     */
+    private static int parseLength(String length) {
+        try {
+            return Math.max(Integer.parseInt(length), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * skips the source that is not lexed, so the next request is read
+     * from the line that follows it
+     */
+    private static void skipFully(InputStream in, long length) throws IOException {
+        // skip() of std input fails on pipes, so the source is read
+        byte[] skipped = new byte[8192];
+        while (length > 0) {
+            int count = in.read(skipped, 0, (int) Math.min(length, skipped.length));
+            if (count == -1) {
+                throw new EOFException("Request source is truncated");
+            }
+            length -= count;
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(bytes, read, length - read);
+            if (count == -1) {
+                throw new EOFException("Request source is truncated");
+            }
+            read += count;
         }
+        return bytes;
     }
 }
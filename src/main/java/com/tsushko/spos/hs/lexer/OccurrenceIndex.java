@@ -0,0 +1,616 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes the occurrences of the identifiers and operators of all Haskell
+ * files of a directory tree, so the occurrences of a name are found
+ * without lexing the files again. A qualified name such as
+ * {@code Data.Map.lookup} is indexed both as it is written and by its
+ * unqualified part, so looking {@code lookup} up finds the qualified
+ * occurrences too.
+ * <p>
+ * The index is kept in a file, which is mapped into memory and searched
+ * in place: the header is followed by the paths of the indexed files
+ * along with their modification times and sizes, the sorted table of
+ * the names and the postings of every name. A name is found by the binary
+ * search of the table, its postings list the files it occurs in and its
+ * offsets in every file as the differences from the previous ones, all as
+ * unsigned LEB128 varints. {@link #update(File, File)} lexes only the files
+ * that changed since the index was written and writes the new index to
+ * a temporary file renamed into place, so readers of the old index
+ * are not disturbed.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see ParallelLexer
+ */
+public class OccurrenceIndex implements Closeable {
+    private static final int MAGIC = 0x48534958;
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * the size of a record of the table of the names: the offset and
+     * the length of the name followed by the offset of its postings
+     */
+    private static final int TERM_SIZE = 4 + 4 + 8;
+
+    private final File file;
+    private ByteBuffer buffer;
+    private final List<File> files;
+    private final long[] modified;
+    private final long[] sizes;
+    private final int terms;
+    private final int termTable;
+    private final int names;
+    private final int postingsEnd;
+
+    /**
+     * the occurrence of a name in an indexed file
+     */
+    public static class Occurrence {
+        private final File file;
+        private final int offset;
+
+        Occurrence(File file, int offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * returns the offset of the first character of the name in the file
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return file + ":" + offset;
+        }
+    }
+
+    private OccurrenceIndex(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.limit() < 20 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an occurrence index: " + file);
+        }
+        int count = buffer.getInt(4);
+        this.terms = buffer.getInt(8);
+        this.termTable = buffer.getInt(12);
+        this.names = buffer.getInt(16);
+        this.postingsEnd = buffer.limit();
+        ByteBuffer header = buffer.duplicate();
+        header.position(20);
+        if (!readString(header).equals(version())) {
+            throw new IOException("Occurrence index of another lexer version: " + file);
+        }
+        this.files = new ArrayList<>(count);
+        this.modified = new long[count];
+        this.sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            files.add(new File(readString(header)));
+            modified[i] = header.getLong();
+            sizes[i] = header.getLong();
+        }
+    }
+
+    /**
+     * Maps the index written by {@link #update(File, File)} into memory.
+     *
+     * @param file the file of the index
+     * @throws IOException if the file is not an index
+     *         or it was written by another version of the lexer
+     */
+    public static OccurrenceIndex open(File file) throws IOException {
+        ByteBuffer mapped;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Index is too large to be mapped: " + file);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return new OccurrenceIndex(file, mapped);
+    }
+
+    /**
+     * Brings the index of the directory tree up to date, lexing the files
+     * that were added or changed since the index was written, and opens it.
+     * The index is built from scratch if the file does not exist or holds
+     * the index of another version of the lexer. The files are lexed
+     * recovering from errors, see {@link Lexer#setRecovering(boolean)};
+     * the files deleted while the index is updated are left out of it.
+     *
+     * @param directory the root of the tree of the Haskell source files
+     * @param file the file of the index
+     * @return the updated index
+     */
+    public static OccurrenceIndex update(File directory, File file)
+            throws IOException, UnexpectedSymbolException {
+        OccurrenceIndex previous = null;
+        if (file.exists()) {
+            try {
+                previous = open(file);
+            } catch (IOException e) {
+                // not an index of this version, it is replaced
+            }
+        }
+
+        List<File> sources = ParallelLexer.findSources(directory);
+        long[] modified = new long[sources.size()];
+        long[] sizes = new long[sources.size()];
+        // the ids of the unchanged files in the previous index
+        int[] previousIds = new int[sources.size()];
+        Map<File, Integer> ids = new HashMap<>();
+        List<File> changed = new ArrayList<>();
+        Map<String, Integer> previousFiles = new HashMap<>();
+        if (previous != null) {
+            for (int id = 0; id < previous.files.size(); id++) {
+                previousFiles.put(previous.files.get(id).getPath(), id);
+            }
+        }
+        for (int id = 0; id < sources.size(); id++) {
+            File source = sources.get(id);
+            ids.put(source, id);
+            modified[id] = source.lastModified();
+            sizes[id] = source.length();
+            Integer previousId = previousFiles.get(source.getPath());
+            if (previousId != null && previous.modified[previousId] == modified[id]
+                    && previous.sizes[previousId] == sizes[id]) {
+                previousIds[id] = previousId;
+            } else {
+                previousIds[id] = -1;
+                changed.add(source);
+            }
+        }
+
+        if (previous != null && changed.isEmpty()
+                && previous.files.size() == sources.size()) {
+            // nothing was added, changed or removed
+            return previous;
+        }
+
+        Map<String, Postings> postings = new HashMap<>();
+        if (previous != null) {
+            try {
+                previous.copyUnchanged(previousIds, postings);
+            } finally {
+                previous.close();
+            }
+        }
+        ParallelLexer lexer = new ParallelLexer();
+        lexer.setRecovering(true);
+        lexer.setTokenTypes(EnumSet.of(Token.Type.identifier, Token.Type.operator));
+        List<File> pending = changed;
+        List<File> deleted = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            List<File> lexed = new ArrayList<>();
+            try {
+                lexer.forEachFile(pending, (source, tokens) -> {
+                    lexed.add(source);
+                    int id = ids.get(source);
+                    for (Token token : tokens) {
+                        String name = token.getString();
+                        add(postings, name, id, token.getOffset());
+                        int start = unqualified(name);
+                        if (start > 0) {
+                            add(postings, name.substring(start), id, token.getOffset() + start);
+                        }
+                    }
+                });
+                break;
+            } catch (FileNotFoundException e) {
+                // the files are passed in order, the missing one follows the lexed ones
+                File missing = pending.get(lexed.size());
+                if (missing.exists()) {
+                    throw e;
+                }
+                deleted.add(missing);
+                pending = pending.subList(lexed.size() + 1, pending.size());
+            }
+        }
+
+        if (!deleted.isEmpty()) {
+            // the files deleted since the tree was listed are left out
+            int[] newIds = new int[sources.size()];
+            List<File> kept = new ArrayList<>(sources.size());
+            for (int id = 0; id < sources.size(); id++) {
+                newIds[id] = kept.size();
+                if (!deleted.contains(sources.get(id))) {
+                    modified[kept.size()] = modified[id];
+                    sizes[kept.size()] = sizes[id];
+                    kept.add(sources.get(id));
+                }
+            }
+            for (Postings occurrences : postings.values()) {
+                occurrences.remap(newIds);
+            }
+            sources = kept;
+        }
+
+        write(file, sources, modified, sizes, postings);
+        return open(file);
+    }
+
+    /**
+     * returns the indexed files in the order of their ids
+     */
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * returns the number of the distinct names indexed
+     */
+    public int size() {
+        return terms;
+    }
+
+    /**
+     * Finds all occurrences of the name, qualified or not.
+     *
+     * @param name the identifier or operator
+     * @return the occurrences ordered by the files and the offsets in them
+     */
+    public List<Occurrence> find(String name) {
+        int term = search(name.getBytes(StandardCharsets.UTF_8));
+        List<Occurrence> occurrences = new ArrayList<>();
+        if (term < 0) {
+            return occurrences;
+        }
+        ByteBuffer in = postings(term);
+        int fileCount = readVarint(in);
+        int id = 0;
+        for (int i = 0; i < fileCount; i++) {
+            id += readVarint(in);
+            File source = files.get(id);
+            int count = readVarint(in);
+            int offset = 0;
+            for (int k = 0; k < count; k++) {
+                offset += readVarint(in);
+                occurrences.add(new Occurrence(source, offset));
+            }
+        }
+        return occurrences;
+    }
+
+    /**
+     * releases the index, the mapping is dropped by the garbage collector
+     */
+    @Override
+    public void close() {
+        buffer = null;
+    }
+
+    /**
+     * returns the index of the name in the table or -1 if it is not there
+     */
+    private int search(byte[] name) {
+        int low = 0;
+        int high = terms - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareName(middle, name);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * compares the bytes of the name of the term with the given ones
+     */
+    private int compareName(int term, byte[] name) {
+        int record = termTable + term * TERM_SIZE;
+        int offset = names + buffer.getInt(record);
+        int length = buffer.getInt(record + 4);
+        for (int i = 0; i < length && i < name.length; i++) {
+            int difference = (buffer.get(offset + i) & 0xFF) - (name[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - name.length;
+    }
+
+    private String name(int term) {
+        int record = termTable + term * TERM_SIZE;
+        byte[] bytes = new byte[buffer.getInt(record + 4)];
+        ByteBuffer in = buffer.duplicate();
+        in.position(names + buffer.getInt(record));
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * returns the buffer positioned at the postings of the term
+     */
+    private ByteBuffer postings(int term) {
+        int record = termTable + term * TERM_SIZE;
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) buffer.getLong(record + 8));
+        return in;
+    }
+
+    /**
+     * adds the occurrences in the unchanged files to the postings
+     *
+     * @param previousIds the ids of the files in this index by their new ids,
+     *        -1 for the changed files
+     */
+    private void copyUnchanged(int[] previousIds, Map<String, Postings> postings) {
+        int[] newIds = new int[files.size()];
+        Arrays.fill(newIds, -1);
+        for (int id = 0; id < previousIds.length; id++) {
+            if (previousIds[id] >= 0) {
+                newIds[previousIds[id]] = id;
+            }
+        }
+        for (int term = 0; term < terms; term++) {
+            ByteBuffer in = postings(term);
+            int fileCount = readVarint(in);
+            int id = 0;
+            Postings kept = null;
+            for (int i = 0; i < fileCount; i++) {
+                id += readVarint(in);
+                int count = readVarint(in);
+                int offset = 0;
+                for (int k = 0; k < count; k++) {
+                    offset += readVarint(in);
+                    if (newIds[id] < 0) {
+                        continue;
+                    }
+                    if (kept == null) {
+                        kept = postings.computeIfAbsent(name(term), key -> new Postings());
+                    }
+                    kept.add(newIds[id], offset);
+                }
+            }
+        }
+    }
+
+    private static void add(Map<String, Postings> postings, String name,
+                            int file, int offset) {
+        postings.computeIfAbsent(name, key -> new Postings()).add(file, offset);
+    }
+
+    /**
+     * returns the offset of the unqualified part of the name,
+     * which is 0 if the name is not qualified
+     */
+    static int unqualified(String name) {
+        int start = 0;
+        int i = 0;
+        while (i < name.length() && CharClass.is(name.charAt(i), CharClass.UPPER)) {
+            do {
+                ++i;
+            } while (i < name.length() && CharClass.is(name.charAt(i), CharClass.IDENTIFIER));
+            if (i + 1 < name.length() && name.charAt(i) == '.') {
+                start = ++i;
+            } else {
+                break;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * writes the index into the temporary file and renames it into place
+     */
+    private static void write(File file, List<File> sources, long[] modified,
+                              long[] sizes, Map<String, Postings> postings)
+            throws IOException {
+        // the names are sorted by their UTF-8 bytes, as the search compares them
+        byte[][] names = new byte[postings.size()][];
+        Map<byte[], Postings> byName = new HashMap<>();
+        int count = 0;
+        for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            names[count++] = name;
+            byName.put(name, entry.getValue());
+        }
+        Arrays.sort(names, OccurrenceIndex::compareBytes);
+
+        ByteArrayBuilder header = new ByteArrayBuilder();
+        header.writeString(version());
+        for (int id = 0; id < sources.size(); id++) {
+            header.writeString(sources.get(id).getPath());
+            header.writeLong(modified[id]);
+            header.writeLong(sizes[id]);
+        }
+        ByteArrayBuilder nameBytes = new ByteArrayBuilder();
+        ByteArrayBuilder postingBytes = new ByteArrayBuilder();
+        int[] nameOffsets = new int[names.length];
+        int[] postingOffsets = new int[names.length];
+        for (int term = 0; term < names.length; term++) {
+            nameOffsets[term] = nameBytes.size();
+            nameBytes.write(names[term], 0, names[term].length);
+            postingOffsets[term] = postingBytes.size();
+            byName.get(names[term]).writeTo(postingBytes);
+        }
+
+        int termTable = 20 + header.size();
+        int nameArea = termTable + names.length * TERM_SIZE;
+        long postingArea = (long) nameArea + nameBytes.size();
+        if (postingArea + postingBytes.size() > Integer.MAX_VALUE) {
+            throw new IOException("Index is too large to be mapped: " + file);
+        }
+
+        Path path = file.toPath();
+        Path temp = path.resolveSibling(path.getFileName() + "." + System.nanoTime() + TEMP_SUFFIX);
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(MAGIC);
+                data.writeInt(sources.size());
+                data.writeInt(names.length);
+                data.writeInt(termTable);
+                data.writeInt(nameArea);
+                header.writeTo(data);
+                for (int term = 0; term < names.length; term++) {
+                    data.writeInt(nameOffsets[term]);
+                    data.writeInt(names[term].length);
+                    data.writeLong(postingArea + postingOffsets[term]);
+                }
+                nameBytes.writeTo(data);
+                postingBytes.writeTo(data);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static int compareBytes(byte[] first, byte[] second) {
+        for (int i = 0; i < first.length && i < second.length; i++) {
+            int difference = (first[i] & 0xFF) - (second[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return first.length - second.length;
+    }
+
+    /**
+     * returns the version of the tokens the index is built from
+     */
+    private static String version() {
+        return Lexer.VERSION + "/" + Charset.defaultCharset().name();
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * the occurrences of a name as the pairs of the file id and the offset
+     */
+    private static class Postings {
+        private long[] entries = new long[4];
+        private int size = 0;
+
+        void add(int file, int offset) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = (long) file << 32 | offset;
+        }
+
+        /**
+         * replaces the file ids with the given new ones
+         */
+        void remap(int[] newIds) {
+            for (int i = 0; i < size; i++) {
+                int file = (int) (entries[i] >>> 32);
+                entries[i] = (long) newIds[file] << 32 | entries[i] & 0xFFFFFFFFL;
+            }
+        }
+
+        /**
+         * writes the number of the files, then the difference of the id
+         * from the previous one, the number of the occurrences and
+         * the differences of their offsets for every file
+         */
+        void writeTo(ByteArrayBuilder out) {
+            Arrays.sort(entries, 0, size);
+            int fileCount = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || entries[i] >>> 32 != entries[i - 1] >>> 32) {
+                    ++fileCount;
+                }
+            }
+            out.writeVarint(fileCount);
+            int previousFile = 0;
+            for (int i = 0; i < size; ) {
+                int file = (int) (entries[i] >>> 32);
+                int end = i;
+                while (end < size && (int) (entries[end] >>> 32) == file) {
+                    ++end;
+                }
+                out.writeVarint(file - previousFile);
+                out.writeVarint(end - i);
+                int previousOffset = 0;
+                for (; i < end; i++) {
+                    int offset = (int) entries[i];
+                    out.writeVarint(offset - previousOffset);
+                    previousOffset = offset;
+                }
+                previousFile = file;
+            }
+        }
+    }
+
+    /**
+     * the growable array the sections of the index are written into
+     */
+    private static class ByteArrayBuilder extends java.io.ByteArrayOutputStream {
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        void writeString(String string) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
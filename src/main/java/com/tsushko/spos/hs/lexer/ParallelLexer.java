@@ -0,0 +1,407 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Lexes many files at once, spreading them across the worker threads
+ * of a work-stealing pool. Every file is lexed by its own {@link Lexer},
+ * while the keyword tables are shared.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer
+ */
+public class ParallelLexer {
+    /**
+     * the extension of the Haskell source files looked for in directories
+     */
+    public static final String SOURCE_EXTENSION = ".hs";
+
+    /**
+     * the number of files lexed ahead of the consumer per worker thread
+     */
+    private static final int TASKS_PER_WORKER = 4;
+
+    /**
+     * the smallest part of a document worth lexing in a separate task
+     */
+    private static final int MIN_CHUNK_LENGTH = 64 * 1024;
+
+    private final ForkJoinPool pool;
+    private volatile SymbolTable symbolTable = null;
+    private volatile boolean recovering = false;
+    private volatile TokenCache tokenCache = null;
+    private volatile Set<Token.Type> tokenTypes = null;
+
+    /**
+     * creates the lexer that uses the common pool,
+     * which has as many workers as there are cores
+     */
+    public ParallelLexer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelLexer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the table the names of all lexed files are interned into,
+     * see {@link Lexer#setSymbolTable(SymbolTable)}.
+     *
+     * @param symbolTable the table or null to stop interning
+     */
+    public void setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    /**
+     * Sets whether the lexers recover from malformed input,
+     * see {@link Lexer#setRecovering(boolean)}. A malformed file then
+     * yields unidentified tokens instead of failing the whole batch.
+     *
+     * @param recovering if the lexers should recover from errors
+     */
+    public void setRecovering(boolean recovering) {
+        this.recovering = recovering;
+    }
+
+    /**
+     * Sets the cache the tokens of the lexed files are looked up in,
+     * see {@link Lexer#setTokenCache(TokenCache)}.
+     *
+     * @param tokenCache the cache or null to stop caching
+     */
+    public void setTokenCache(TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    /**
+     * Sets the types of the tokens produced for every file,
+     * see {@link Lexer#setTokenTypes(Set)}. The documents lexed in chunks
+     * by {@link #lexDocumentInChunks(File)} are not filtered.
+     *
+     * @param tokenTypes the types of the wanted tokens or null for all types
+     */
+    public void setTokenTypes(Set<Token.Type> tokenTypes) {
+        this.tokenTypes = tokenTypes;
+    }
+
+    /**
+     * creates the lexer for a single task
+     */
+    private Lexer newLexer() {
+        Lexer lexer = new Lexer();
+        lexer.setSymbolTable(symbolTable);
+        lexer.setRecovering(recovering);
+        lexer.setTokenCache(tokenCache);
+        lexer.setTokenTypes(tokenTypes);
+        return lexer;
+    }
+
+    /**
+     * Lexes the given files in parallel.
+     *
+     * @param files the Haskell source files
+     * @return the tokens of every file, in the order of the given files
+     * @see #forEachFile(Collection, BiConsumer)
+     * @throws IOException if any of the files could not be read,
+     *         {@link FileNotFoundException} if it does not exist
+     * @throws UnexpectedSymbolException if any of the files could not be lexed
+     */
+    public Map<File, List<Token>> lexFiles(Collection<File> files)
+            throws IOException, UnexpectedSymbolException {
+        Map<File, List<Token>> result = new LinkedHashMap<>();
+        forEachFile(files, result::put);
+        return result;
+    }
+
+    /**
+     * Lexes the given files in parallel and passes the tokens of every file
+     * to the consumer in the order of the given files. The consumer is called
+     * from the calling thread; only a limited number of files is lexed ahead
+     * of it, so the memory used does not depend on the number of files.
+     *
+     * @param files the Haskell source files
+     * @param consumer the receiver of the tokens of every file
+     * @throws IOException if any of the files could not be read,
+     *         {@link FileNotFoundException} if it does not exist
+     * @throws UnexpectedSymbolException if any of the files could not be lexed
+     */
+    public void forEachFile(Collection<File> files,
+                            BiConsumer<File, List<Token>> consumer)
+            throws IOException, UnexpectedSymbolException {
+        int window = pool.getParallelism() * TASKS_PER_WORKER;
+        Deque<LexTask> pending = new ArrayDeque<>(window);
+        Iterator<File> remaining = files.iterator();
+        try {
+            while (pending.size() < window && remaining.hasNext()) {
+                pending.add(submit(remaining.next()));
+            }
+            while (!pending.isEmpty()) {
+                LexTask task = pending.poll();
+                List<Token> tokens = task.getTokens();
+                if (remaining.hasNext()) {
+                    pending.add(submit(remaining.next()));
+                }
+                consumer.accept(task.file, tokens);
+            }
+        } finally {
+            for (LexTask task : pending) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Lexes all Haskell source files found in the directory tree in parallel
+     * and passes the tokens of every file to the consumer,
+     * see {@link #forEachFile(Collection, BiConsumer)}.
+     *
+     * @param directory the root of the tree
+     * @param consumer the receiver of the tokens of every file
+     * @throws IOException if the tree or any of the files could not be read,
+     *         {@link FileNotFoundException} if the file does not exist
+     * @throws UnexpectedSymbolException if any of the files could not be lexed
+     */
+    public void forEachFileInTree(File directory,
+                                  BiConsumer<File, List<Token>> consumer)
+            throws IOException, UnexpectedSymbolException {
+        forEachFile(findSources(directory), consumer);
+    }
+
+    /**
+     * Lexes a single large document, splitting it into chunks that are
+     * lexed in parallel. Every chunk but the first one is lexed
+     * speculatively, as if no comment, pragma or literal was open at its
+     * start. The chunks are then joined in order: the tokens of a chunk
+     * are taken starting from the first of them that begins where the
+     * lexer of the preceding text starts a token; the text before it is
+     * lexed again. Since every token is lexed from the initial state, the
+     * result is the same as the one of {@link Lexer#lexToBuffer(File)}.
+     *
+     * @param file the Haskell source file
+     * @return the buffer holding the tokens of the file
+     * @throws java.io.FileNotFoundException if the file does not exist
+     * @throws UnexpectedSymbolException if the file could not be lexed
+     */
+    public TokenBuffer lexDocumentInChunks(File file)
+            throws IOException, UnexpectedSymbolException {
+        CharBuffer text;
+        try (Reader reader = new FileReader(file)) {
+            text = CharCursor.readFully(reader,
+                    (int) Math.min(file.length() + 1, Integer.MAX_VALUE - 8));
+        }
+        char[] source = text.array();
+        int length = text.limit();
+
+        int count = Math.max(1, Math.min(pool.getParallelism() * TASKS_PER_WORKER,
+                length / MIN_CHUNK_LENGTH));
+        List<ChunkTask> chunks = new ArrayList<>(count);
+        int from = 0;
+        for (int i = 1; i <= count && from < length; i++) {
+            int to = i == count ? length : lineStartAfter(source, length,
+                    Math.max(from, (int) ((long) length * i / count)));
+            ChunkTask chunk = new ChunkTask(source, length, from, to, recovering);
+            pool.execute(chunk);
+            chunks.add(chunk);
+            from = to;
+        }
+
+        TokenBuffer result = new TokenBuffer(source, length);
+        Lexer lexer = new Lexer();
+        lexer.setRecovering(recovering);
+        lexer.start(source, 0, length,
+                (type, start, end, chars, offset) -> result.add(type, start, end));
+        int position = 0;
+        for (ChunkTask chunk : chunks) {
+            chunk.join();
+            TokenBuffer speculative = chunk.tokens;
+            int next = 0;
+            while (position < chunk.to) {
+                while (next < speculative.size()
+                        && speculative.getStart(next) < position) {
+                    ++next;
+                }
+                if (next < speculative.size()
+                        && speculative.getStart(next) == position) {
+                    // the chunk was lexed from the right state from here on
+                    result.addAll(speculative, next, speculative.size(), 0);
+                    position = chunk.stop;
+                    lexer.start(source, position, length,
+                            (type, start, end, chars, offset) ->
+                                    result.add(type, start, end));
+                    if (position < chunk.to) {
+                        // the chunk stopped on a failure, let it happen again
+                        lexer.step();
+                        position = lexer.position();
+                    }
+                    continue;
+                }
+                if (!lexer.step()) {
+                    break;
+                }
+                position = lexer.position();
+            }
+        }
+        result.trimToSize();
+        return result;
+    }
+
+    /**
+     * returns the offset following the first line break at or after
+     * the given offset, a likely place for a token to start
+     */
+    private static int lineStartAfter(char[] source, int length, int offset) {
+        while (offset < length && source[offset++] != '\n') {
+            // skip the rest of the line
+        }
+        return offset;
+    }
+
+    private LexTask submit(File file) {
+        LexTask task = new LexTask(file);
+        pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Lexes all Haskell source files found in the directory tree in parallel.
+     *
+     * @param directory the root of the tree
+     * @return the tokens of every file, in the order of their paths
+     * @throws IOException if the tree or any of the files could not be read,
+     *         {@link FileNotFoundException} if the file does not exist
+     * @throws UnexpectedSymbolException if any of the files could not be lexed
+     */
+    public Map<File, List<Token>> lexTree(File directory)
+            throws IOException, UnexpectedSymbolException {
+        return lexFiles(findSources(directory));
+    }
+
+    /**
+     * lists the Haskell source files of the directory tree
+     * sorted by their paths
+     */
+    public static List<File> findSources(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths
+                    .filter(path -> path.toString().endsWith(SOURCE_EXTENSION))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * speculatively lexes the part of the document that starts
+     * at the given offset, up to the first token starting at or after
+     * the end of the part
+     */
+    private static class ChunkTask extends RecursiveAction {
+        private final char[] source;
+        private final int length;
+        private final int from;
+        private final int to;
+        private final boolean recovering;
+        private TokenBuffer tokens;
+        /**
+         * the offset the lexing stopped at, which is before the end
+         * of the part only if the lexing failed there
+         */
+        private int stop;
+
+        ChunkTask(char[] source, int length, int from, int to,
+                  boolean recovering) {
+            this.source = source;
+            this.length = length;
+            this.from = from;
+            this.to = to;
+            this.recovering = recovering;
+        }
+
+        @Override
+        protected void compute() {
+            tokens = new TokenBuffer(source, length, (to - from) / 5);
+            Lexer lexer = new Lexer();
+            lexer.setRecovering(recovering);
+            lexer.start(source, from, length,
+                    (type, start, end, chars, offset) -> tokens.add(type, start, end));
+            stop = from;
+            try {
+                while (stop < to && lexer.step()) {
+                    stop = lexer.position();
+                }
+            } catch (IOException | UnexpectedSymbolException e) {
+                // the text is lexed again from the offset it failed at
+            }
+        }
+    }
+
+    /**
+     * lexes a single file, keeping the failure until the result is requested
+     */
+    private class LexTask extends RecursiveAction {
+        private final File file;
+        private List<Token> tokens;
+        private IOException ioFailure;
+        private UnexpectedSymbolException lexFailure;
+
+        LexTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                tokens = newLexer().lexDocument(file);
+                if (tokens == null) {
+                    // the lexer returns no tokens for a missing file
+                    ioFailure = new FileNotFoundException(file.getPath());
+                }
+            } catch (IOException e) {
+                ioFailure = e;
+            } catch (UnexpectedSymbolException e) {
+                lexFailure = e;
+            }
+        }
+
+        /**
+         * waits for the task and rethrows its failure
+         */
+        List<Token> getTokens() throws IOException, UnexpectedSymbolException {
+            join();
+            if (ioFailure != null) {
+                throw ioFailure;
+            } else if (lexFailure != null) {
+                throw lexFailure;
+            }
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.util.BitSet;
+
+/**
+ * Regular expression over the alphabet of the generated lexer,
+ * see {@link DfaBuilder}. The symbols of the alphabet are the ASCII
+ * characters followed by the classes of the rest of the characters,
+ * one for every distinct set of the properties of {@link CharClass}.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see LexicalGrammar
+ */
+abstract class Regex {
+    static final int ASCII = 128;
+    /**
+     * the number of the symbols of the alphabet
+     */
+    static final int SYMBOLS = ASCII + CharClass.indices();
+
+    /**
+     * adds the states of the expression to the automaton
+     *
+     * @param nfa the automaton
+     * @param from the state the expression starts in
+     * @return the state the expression ends in
+     */
+    abstract int build(DfaBuilder.Nfa nfa, int from);
+
+    /**
+     * returns the symbol standing for the character
+     */
+    static int symbol(char c) {
+        return c < ASCII ? c : ASCII + CharClass.index(c);
+    }
+
+    /**
+     * matches a single symbol of the set
+     */
+    static Regex set(BitSet symbols) {
+        return new Set(symbols);
+    }
+
+    /**
+     * matches any of the given ASCII characters
+     */
+    static Regex chars(String chars) {
+        BitSet symbols = new BitSet(SYMBOLS);
+        for (int i = 0; i < chars.length(); i++) {
+            symbols.set(chars.charAt(i));
+        }
+        return set(symbols);
+    }
+
+    /**
+     * matches the ASCII string
+     */
+    static Regex literal(String string) {
+        Regex[] parts = new Regex[string.length()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = chars(string.substring(i, i + 1));
+        }
+        return seq(parts);
+    }
+
+    static Regex seq(Regex... parts) {
+        return new Sequence(parts);
+    }
+
+    static Regex alt(Regex... parts) {
+        return new Alternation(parts);
+    }
+
+    static Regex star(Regex part) {
+        return new Star(part);
+    }
+
+    static Regex plus(Regex part) {
+        return seq(part, star(part));
+    }
+
+    static Regex opt(Regex part) {
+        return alt(part, seq());
+    }
+
+    private static class Set extends Regex {
+        private final BitSet symbols;
+
+        Set(BitSet symbols) {
+            this.symbols = symbols;
+        }
+
+        @Override
+        int build(DfaBuilder.Nfa nfa, int from) {
+            int to = nfa.state();
+            nfa.edge(from, symbols, to);
+            return to;
+        }
+    }
+
+    private static class Sequence extends Regex {
+        private final Regex[] parts;
+
+        Sequence(Regex[] parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        int build(DfaBuilder.Nfa nfa, int from) {
+            int state = from;
+            for (Regex part : parts) {
+                state = part.build(nfa, state);
+            }
+            return state;
+        }
+    }
+
+    private static class Alternation extends Regex {
+        private final Regex[] parts;
+
+        Alternation(Regex[] parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        int build(DfaBuilder.Nfa nfa, int from) {
+            int to = nfa.state();
+            for (Regex part : parts) {
+                int start = nfa.state();
+                nfa.edge(from, null, start);
+                nfa.edge(part.build(nfa, start), null, to);
+            }
+            return to;
+        }
+    }
+
+    private static class Star extends Regex {
+        private final Regex part;
+
+        Star(Regex part) {
+            this.part = part;
+        }
+
+        @Override
+        int build(DfaBuilder.Nfa nfa, int from) {
+            // fresh states, so the loop never leaks into the neighbours
+            int loop = nfa.state();
+            int to = nfa.state();
+            nfa.edge(from, null, loop);
+            nfa.edge(part.build(nfa, loop), null, loop);
+            nfa.edge(loop, null, to);
+            return to;
+        }
+    }
+}
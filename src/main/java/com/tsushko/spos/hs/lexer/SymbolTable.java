@@ -0,0 +1,160 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns the text of identifiers, operators and keywords, giving every
+ * distinct text a stable symbol id. The tokens of all documents lexed
+ * with the same table share a single string per symbol, and two tokens
+ * have the same text exactly when their symbol ids are equal.
+ * <p>
+ * The text is looked up directly in the scanned characters by the hash
+ * the lexer computes while scanning them, so no string is created unless
+ * the text is new to the table. The table may be shared between threads:
+ * lookups do not lock, and only the insertion of new symbols is
+ * synchronized.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer#setSymbolTable(SymbolTable)
+ */
+public class SymbolTable {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final class Entry {
+        final String symbol;
+        final int hash;
+        final int id;
+        final Entry next;
+
+        Entry(String symbol, int hash, int id, Entry next) {
+            this.symbol = symbol;
+            this.hash = hash;
+            this.id = id;
+            this.next = next;
+        }
+    }
+
+    private volatile AtomicReferenceArray<Entry> buckets =
+            new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private volatile String[] symbols = new String[INITIAL_CAPACITY];
+    private volatile int size = 0;
+
+    /**
+     * computes the hash of the characters the same way the lexer
+     * does while scanning them, which is also {@link String#hashCode()}
+     */
+    public static int hash(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[offset + i];
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the id of the symbol with the given text,
+     * adding the symbol if the table does not have it yet.
+     *
+     * @param chars the buffer holding the text
+     * @param offset the index of the first character of the text in the buffer
+     * @param length the length of the text
+     * @param hash the hash of the text, see {@link #hash(char[], int, int)}
+     * @return the id of the symbol
+     */
+    public int intern(char[] chars, int offset, int length, int hash) {
+        AtomicReferenceArray<Entry> current = buckets;
+        Entry entry = find(current.get(hash & (current.length() - 1)),
+                chars, offset, length, hash);
+        if (entry != null) {
+            return entry.id;
+        }
+        return add(new String(chars, offset, length), hash);
+    }
+
+    /**
+     * Returns the id of the symbol with the given text,
+     * adding the symbol if the table does not have it yet.
+     */
+    public int intern(String text) {
+        return intern(text.toCharArray(), 0, text.length(), text.hashCode());
+    }
+
+    /**
+     * returns the text of the symbol with the given id
+     */
+    public String symbol(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Unknown symbol " + id);
+        }
+        return symbols[id];
+    }
+
+    /**
+     * returns the number of symbols in the table,
+     * the ids of the symbols are less than this number
+     */
+    public int size() {
+        return size;
+    }
+
+    private static Entry find(Entry entry, char[] chars, int offset,
+                              int length, int hash) {
+        for (; entry != null; entry = entry.next) {
+            if (entry.hash == hash && entry.symbol.length() == length
+                    && matches(entry.symbol, chars, offset)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String symbol, char[] chars, int offset) {
+        for (int i = 0; i < symbol.length(); i++) {
+            if (symbol.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized int add(String symbol, int hash) {
+        AtomicReferenceArray<Entry> current = buckets;
+        int index = hash & (current.length() - 1);
+        char[] chars = symbol.toCharArray();
+        Entry existing = find(current.get(index), chars, 0, chars.length, hash);
+        if (existing != null) {
+            // added by another thread in the meantime
+            return existing.id;
+        }
+
+        int id = size;
+        if (id == symbols.length) {
+            symbols = Arrays.copyOf(symbols, id * 2);
+        }
+        // the text is stored before the id can be found by readers
+        symbols[id] = symbol;
+        size = id + 1;
+        if (size > current.length() * 3 / 4) {
+            current = rehash(current);
+            index = hash & (current.length() - 1);
+        }
+        current.set(index, new Entry(symbol, hash, id, current.get(index)));
+        return id;
+    }
+
+    private AtomicReferenceArray<Entry> rehash(AtomicReferenceArray<Entry> old) {
+        AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<>(old.length() * 2);
+        int mask = grown.length() - 1;
+        for (int i = 0; i < old.length(); i++) {
+            for (Entry entry = old.get(i); entry != null; entry = entry.next) {
+                int index = entry.hash & mask;
+                grown.set(index, new Entry(entry.symbol, entry.hash,
+                        entry.id, grown.get(index)));
+            }
+        }
+        buckets = grown;
+        return grown;
+    }
+}
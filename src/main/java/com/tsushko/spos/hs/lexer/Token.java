@@ -10,6 +10,15 @@ public class Token {
 
     private Type type;
     private String string;
+    /**
+     * the text of the token when it is a view of the source
+     * instead of a string of its own
+     */
+    private CharSequence text;
+    private String value;
+    private int symbol = -1;
+    private int offset = -1;
+    private boolean virtual = false;
 
     public static enum Type {
         numericConstant,
@@ -28,6 +37,31 @@ public class Token {
         this.string = string;
     }
 
+    /**
+     * creates the token whose text is a view of the characters of its source,
+     * which is not copied until {@link #getString()} is called
+     */
+    public Token(Type type, CharSequence text) {
+        this.type = type;
+        this.text = text;
+    }
+
+    /**
+     * creates the literal token whose text is a view of the characters
+     * of its source, see {@link #Token(Type, CharSequence)}
+     */
+    public Token(Type type, CharSequence text, String value) {
+        this.type = type;
+        this.text = text;
+        this.value = value;
+    }
+
+    public Token(Type type, String string, String value) {
+        this.type = type;
+        this.string = string;
+        this.value = value;
+    }
+
     public Type getType() {
         return type;
     }
@@ -37,15 +71,83 @@ public class Token {
     }
 
     public String getString() {
+        if (string == null && text != null) {
+            string = text.toString();
+        }
         return string;
     }
 
     public void setString(String string) {
         this.string = string;
+        this.text = null;
+    }
+
+    /**
+     * returns the text of the token without copying it, which is a view
+     * of the source for the tokens lexed from the characters in memory
+     *
+     * @see Lexer#lexDocument(CharSequence)
+     */
+    public CharSequence getText() {
+        return text != null ? text : string;
+    }
+
+    /**
+     * returns the decoded value of a character or string literal,
+     * or null if the value was not decoded
+     *
+     * @see Lexer#setDecodingLiterals(boolean)
+     */
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    /**
+     * returns the id of the text of an identifier, operator or keyword
+     * in the symbol table, or -1 if the text was not interned
+     *
+     * @see Lexer#setSymbolTable(SymbolTable)
+     */
+    public int getSymbol() {
+        return symbol;
+    }
+
+    public void setSymbol(int symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * returns the offset of the first character of the token
+     * in its document, or -1 if the offset is not known
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * returns if the token was inserted by the layout algorithm
+     * and has no characters in the document
+     *
+     * @see LayoutSink
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public void setVirtual(boolean virtual) {
+        this.virtual = virtual;
     }
 
     @Override
     public String toString() {
-        return "[" + type + ", \"" + string + "\"]";
+        return "[" + type + ", \"" + getText() + "\"]";
     }
 }
@@ -0,0 +1,196 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Stores the tokens of a document in a compact columnar form:
+ * a type byte and a pair of offsets per token, all pointing into
+ * a single source buffer shared by the tokens. The text of a token
+ * is materialized only when it is requested.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer#lexToBuffer(java.io.File)
+ */
+public class TokenBuffer {
+    private static final Token.Type[] TYPES = Token.Type.values();
+    private static final int MIN_CAPACITY = 16;
+
+    private final char[] source;
+    private final int sourceLength;
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    private int size = 0;
+
+    TokenBuffer(char[] source, int sourceLength) {
+        // roughly one token per five characters of source
+        this(source, sourceLength, sourceLength / 5);
+    }
+
+    TokenBuffer(char[] source, int sourceLength, int capacity) {
+        this.source = source;
+        this.sourceLength = sourceLength;
+        capacity = Math.max(MIN_CAPACITY, capacity);
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+    }
+
+    /**
+     * appends the token to the end of the buffer
+     */
+    void add(Token.Type type, int start, int end) {
+        if (size == types.length) {
+            int capacity = size + (size >> 1);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        ++size;
+    }
+
+    /**
+     * appends the tokens of the other buffer, moving them
+     * by the given number of characters
+     *
+     * @param other the buffer to copy the tokens from
+     * @param from the index of the first token to copy
+     * @param to the index following the last token to copy
+     * @param shift the number of characters to add to the offsets
+     */
+    void addAll(TokenBuffer other, int from, int to, int shift) {
+        int count = to - from;
+        if (size + count > types.length) {
+            int capacity = Math.max(size + count, size + (size >> 1));
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        System.arraycopy(other.types, from, types, size, count);
+        for (int i = 0; i < count; i++) {
+            starts[size + i] = other.starts[from + i] + shift;
+            ends[size + i] = other.ends[from + i] + shift;
+        }
+        size += count;
+    }
+
+    /**
+     * returns the index of the first token ending after the given offset
+     * or {@link #size()} if there is no such token
+     */
+    int firstEndingAfter(int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] > offset) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * releases the unused capacity
+     */
+    void trimToSize() {
+        types = Arrays.copyOf(types, size);
+        starts = Arrays.copyOf(starts, size);
+        ends = Arrays.copyOf(ends, size);
+    }
+
+    /**
+     * returns the number of tokens in the buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    public Token.Type getType(int index) {
+        checkIndex(index);
+        return TYPES[types[index]];
+    }
+
+    /**
+     * returns the offset of the first character of the token
+     * in the source
+     */
+    public int getStart(int index) {
+        checkIndex(index);
+        return starts[index];
+    }
+
+    /**
+     * returns the offset following the last character of the token
+     * in the source
+     */
+    public int getEnd(int index) {
+        checkIndex(index);
+        return ends[index];
+    }
+
+    /**
+     * creates the string holding the text of the token
+     */
+    public String getString(int index) {
+        checkIndex(index);
+        return new String(source, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     * creates the token object for the token at the given index
+     */
+    public Token getToken(int index) {
+        Token token = new Token(getType(index), getString(index));
+        token.setOffset(starts[index]);
+        return token;
+    }
+
+    /**
+     * returns the source buffer shared by all tokens,
+     * only its first {@link #getSourceLength()} characters are valid
+     */
+    public char[] getSource() {
+        return source;
+    }
+
+    public int getSourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * returns a read-only list view of the buffer,
+     * the token objects are created on access
+     */
+    public List<Token> asList() {
+        return new TokenList();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(
+                    "Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private class TokenList extends AbstractList<Token> implements RandomAccess {
+        @Override
+        public Token get(int index) {
+            return getToken(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the tokens of lexed documents on disk, so a document whose
+ * content did not change is not lexed again, see
+ * {@link Lexer#setTokenCache(TokenCache)}.
+ * <p>
+ * An entry is addressed by the SHA-256 hash of the content of the document
+ * together with the version of the lexer and the options affecting its
+ * tokens, and holds the tokens in the format of {@link TokenStreamWriter}.
+ * The entries are written to temporary files and renamed into place,
+ * so any number of processes may share the cache directory. When the
+ * entries grow larger than the maximum size, the least recently used ones
+ * are evicted by the process holding the lock of the directory.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class TokenCache {
+    private static final int MAGIC = 0x48535443;
+    private static final String ENTRY_SUFFIX = ".tok";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = "lock";
+    /**
+     * the age after which the temporary file is considered left
+     * by a crashed process
+     */
+    private static final long TEMP_EXPIRY_MILLIS = 60 * 60 * 1000;
+    /**
+     * the share of the maximum size the eviction trims the cache to
+     */
+    private static final double LOW_WATERMARK = 0.9;
+
+    private final Path directory;
+    private final long maxSize;
+    /**
+     * the size of the entries as seen by this process,
+     * other processes change it unnoticed until the next eviction
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * creates the cache in the directory, creating the directory
+     * if it does not exist
+     *
+     * @param directory the directory holding the entries
+     * @param maxSize the size in bytes the entries may take
+     */
+    public TokenCache(File directory, long maxSize) throws IOException {
+        this.directory = directory.toPath();
+        this.maxSize = maxSize;
+        Files.createDirectories(this.directory);
+        size.set(scan(new ArrayList<>()));
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * returns the size in bytes of the entries
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * computes the key of the document with the given content
+     *
+     * @param content the bytes of the document
+     * @param options the options of the lexer affecting the tokens
+     */
+    static String key(byte[] content, String options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String version = Lexer.VERSION + "/" + Charset.defaultCharset().name()
+                + "/" + options;
+        digest.update(version.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(content);
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit(b >> 4 & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * returns the tokens of the entry, marking it as recently used
+     *
+     * @param key the key of the entry
+     * @param diagnostics the list the diagnostics of the entry are added to
+     * @return the tokens or null if there is no such entry
+     */
+    List<Token> get(String key, List<Diagnostic> diagnostics) {
+        Path path = path(key);
+        List<Token> tokens = new ArrayList<>();
+        List<Diagnostic> read = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a cache entry: " + path);
+            }
+            for (int count = data.readInt(); count > 0; count--) {
+                read.add(new Diagnostic(data.readInt(), data.readInt(),
+                        data.readUTF()));
+            }
+            TokenStreamReader reader = new TokenStreamReader(in);
+            reader.nextDocument();
+            while (reader.nextToken()) {
+                tokens.add(reader.getToken());
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // the entry is damaged, it is replaced by the caller
+            deleteQuietly(path);
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted in the meantime
+        }
+        diagnostics.addAll(read);
+        return tokens;
+    }
+
+    /**
+     * stores the tokens of the entry, replacing the existing one
+     *
+     * @param key the key of the entry
+     * @param tokens the tokens, which must carry their offsets
+     * @param diagnostics the diagnostics of the unidentified tokens
+     * @throws IOException if the entry could not be written
+     */
+    void put(String key, List<Token> tokens, List<Diagnostic> diagnostics)
+            throws IOException {
+        Path path = path(key);
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), key, TEMP_SUFFIX);
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(MAGIC);
+                data.writeInt(diagnostics.size());
+                for (Diagnostic diagnostic : diagnostics) {
+                    data.writeInt(diagnostic.getStart());
+                    data.writeInt(diagnostic.getOffset());
+                    data.writeUTF(diagnostic.getMessage());
+                }
+                TokenStreamWriter writer = new TokenStreamWriter(out);
+                writer.startDocument(key);
+                writer.write(tokens);
+                writer.finish();
+            }
+            long length = Files.size(temp);
+            // the entry written by another process for the same key is replaced
+            long replaced;
+            try {
+                replaced = Files.size(path);
+            } catch (NoSuchFileException e) {
+                replaced = 0;
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (size.addAndGet(length - replaced) > maxSize) {
+                evict();
+            }
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the entries take
+     * less than the maximum size. Nothing is done if another process
+     * or thread is evicting the entries of the directory already.
+     */
+    public void evict() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                return;
+            }
+            if (lock == null) {
+                return;
+            }
+            try {
+                List<EntryFile> entries = new ArrayList<>();
+                long total = scan(entries);
+                entries.sort((a, b) -> Long.compare(a.used, b.used));
+                long target = (long) (maxSize * LOW_WATERMARK);
+                for (EntryFile entry : entries) {
+                    if (total <= target) {
+                        break;
+                    }
+                    if (deleteQuietly(entry.path)) {
+                        total -= entry.size;
+                    }
+                }
+                size.set(total);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * lists the entries, deleting the expired temporary files
+     *
+     * @return the total size of the entries
+     */
+    private long scan(List<EntryFile> entries) throws IOException {
+        long now = System.currentTimeMillis();
+        long total = 0;
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                long used = attributes.lastModifiedTime().toMillis();
+                if (name.endsWith(ENTRY_SUFFIX)) {
+                    entries.add(new EntryFile(path, attributes.size(), used));
+                    total += attributes.size();
+                } else if (name.endsWith(TEMP_SUFFIX) && now - used > TEMP_EXPIRY_MILLIS) {
+                    deleteQuietly(path);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return total;
+    }
+
+    /**
+     * returns the path of the entry, the entries are spread
+     * over subdirectories named after the first two digits of the key
+     */
+    private Path path(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ENTRY_SUFFIX);
+    }
+
+    private static boolean deleteQuietly(Path path) {
+        try {
+            return Files.deleteIfExists(path);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class EntryFile {
+        private final Path path;
+        private final long size;
+        private final long used;
+
+        EntryFile(Path path, long size, long used) {
+            this.path = path;
+            this.size = size;
+            this.used = used;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over the tokens of a document, lexing the next token
+ * only when it is requested. The input is closed as soon as
+ * the end of file is reached or the lexing fails.
+ * <p>
+ * {@link IOException} and {@link UnexpectedSymbolException} thrown
+ * while lexing are rethrown wrapped into {@link UncheckedIOException}
+ * and {@link UncheckedLexerException} respectively.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer#iterateDocument(java.io.File)
+ */
+public class TokenIterator implements Iterator<Token>, Closeable {
+    private final Lexer lexer;
+    private Token next = null;
+    private boolean finished = false;
+
+    TokenIterator(Lexer lexer) {
+        this.lexer = lexer;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = lexer.nextToken();
+            } catch (IOException e) {
+                closeQuietly();
+                throw new UncheckedIOException(e);
+            } catch (UnexpectedSymbolException e) {
+                closeQuietly();
+                throw new UncheckedLexerException(e);
+            }
+            if (next == null) {
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Token next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Token token = next;
+        next = null;
+        return token;
+    }
+
+    /**
+     * returns a sequential stream backed by this iterator,
+     * closing the stream closes the iterator
+     */
+    public Stream<Token> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this,
+                        Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(this::close);
+    }
+
+    /**
+     * stops lexing and releases the input
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            finished = true;
+            try {
+                lexer.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (UncheckedIOException e) {
+            // the original failure is more important
+        }
+    }
+}
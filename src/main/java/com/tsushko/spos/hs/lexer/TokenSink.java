@@ -0,0 +1,89 @@
+package com.tsushko.spos.hs.lexer;
+
+/**
+ * Receives tokens from the lexer as soon as they are recognized,
+ * without any token objects or strings being created for them
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see Lexer#lexDocument(java.io.File, TokenSink)
+ */
+@FunctionalInterface
+public interface TokenSink {
+    /**
+     * Receives the next token. The characters of the token are
+     * {@code chars[offset]} through {@code chars[offset + end - start - 1]};
+     * the array is owned by the lexer and is valid only during the call.
+     *
+     * @param type the type of the token
+     * @param start the offset of the first character of the token in the document
+     * @param end the offset following the last character of the token
+     * @param chars the buffer holding the characters of the token
+     * @param offset the index of the first character of the token in the buffer
+     */
+    void token(Token.Type type, int start, int end, char[] chars, int offset);
+
+    /**
+     * Receives the next character or string literal along with its value,
+     * when the lexer decodes the literals. By default the literal is passed
+     * to {@link #token(Token.Type, int, int, char[], int)} as a symbolic
+     * constant and the value is ignored.
+     *
+     * @param start the offset of the first character of the literal in the document
+     * @param end the offset following the last character of the literal
+     * @param chars the buffer holding the characters of the literal
+     * @param offset the index of the first character of the literal in the buffer
+     * @param value the decoded value of the literal, valid only during the call
+     * @see Lexer#setDecodingLiterals(boolean)
+     */
+    default void literal(int start, int end, char[] chars, int offset,
+                         CharSequence value) {
+        token(Token.Type.symbolicConstant, start, end, chars, offset);
+    }
+
+    /**
+     * Receives the next identifier, operator or keyword along with
+     * its symbol id, when the lexer interns the names. By default the name
+     * is passed to {@link #token(Token.Type, int, int, char[], int)}
+     * and the id is ignored.
+     *
+     * @param type the type of the token
+     * @param start the offset of the first character of the token in the document
+     * @param end the offset following the last character of the token
+     * @param chars the buffer holding the characters of the token
+     * @param offset the index of the first character of the token in the buffer
+     * @param symbol the id of the text of the token in the symbol table
+     * @see Lexer#setSymbolTable(SymbolTable)
+     */
+    default void symbol(Token.Type type, int start, int end, char[] chars,
+                        int offset, int symbol) {
+        token(type, start, end, chars, offset);
+    }
+
+    /**
+     * Receives the whitespace between two tokens, which is not a token
+     * and is ignored by default. The lexer passes every run of
+     * whitespace characters at once.
+     *
+     * @param start the offset of the first whitespace character in the document
+     * @param end the offset following the last whitespace character
+     * @param chars the buffer holding the whitespace characters
+     * @param offset the index of the first whitespace character in the buffer
+     */
+    default void whitespace(int start, int end, char[] chars, int offset) {
+        // not a token
+    }
+
+    /**
+     * Receives the virtual brace or semicolon inserted by the layout
+     * algorithm, which has no characters in the document.
+     * It is ignored by default.
+     *
+     * @param punctuation the inserted character, one of <code>{ ; }</code>
+     * @param offset the offset in the document the character is inserted at
+     * @see LayoutSink
+     */
+    default void virtual(char punctuation, int offset) {
+        // not in the document
+    }
+}
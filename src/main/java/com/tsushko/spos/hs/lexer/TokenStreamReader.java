@@ -0,0 +1,239 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the tokens written by {@link TokenStreamWriter} one at a time,
+ * without reading the whole stream into memory:
+ * <pre>
+ * String document;
+ * while ((document = reader.nextDocument()) != null) {
+ *     while (reader.nextToken()) {
+ *         reader.getType(); reader.getStart(); reader.getText();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see TokenStreamWriter
+ */
+public class TokenStreamReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    private final InputStream in;
+    private final int flags;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private final List<String> strings = new ArrayList<>();
+
+    /**
+     * the record read ahead of the tokens of the current document
+     */
+    private int record = -1;
+    private boolean finished = false;
+
+    private Token.Type type;
+    private int start;
+    private int end = 0;
+    private String text;
+
+    /**
+     * creates the reader and reads the header of the stream
+     *
+     * @throws IOException if the stream is not a token stream
+     *         or its version is not supported
+     */
+    public TokenStreamReader(InputStream in) throws IOException {
+        this.in = in;
+        for (byte b : TokenStreamWriter.MAGIC) {
+            if (readByte() != b) {
+                throw new IOException("Not a token stream");
+            }
+        }
+        int version = readByte();
+        // the streams of the first version have no error records
+        if (version < 1 || version > TokenStreamWriter.VERSION) {
+            throw new IOException("Unsupported token stream version " + version);
+        }
+        flags = readByte();
+    }
+
+    /**
+     * returns the flags the stream was written with,
+     * see {@link TokenStreamWriter#TEXT} and {@link TokenStreamWriter#STRING_TABLE}
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * skips the rest of the current document and starts the next one
+     *
+     * @return the name of the next document or null at the end of the stream
+     */
+    public String nextDocument() throws IOException {
+        do {
+            if (record == -1 && !finished) {
+                record = readByte();
+            }
+            if (record == TokenStreamWriter.ERROR) {
+                // the failure of the skipped document
+                readString();
+                record = -1;
+            }
+        } while (nextToken());
+        if (finished) {
+            return null;
+        }
+        record = -1;
+        end = 0;
+        return readString();
+    }
+
+    /**
+     * reads the next token of the current document
+     *
+     * @return false if the document has no more tokens
+     * @throws IOException with the message of the failure if the document
+     *         failed to be lexed after its last token, the next document
+     *         may still be read
+     */
+    public boolean nextToken() throws IOException {
+        if (record == -1 && !finished) {
+            record = readByte();
+        }
+        if (record == TokenStreamWriter.ERROR) {
+            String message = readString();
+            record = -1;
+            throw new IOException(message);
+        }
+        if (record == TokenStreamWriter.DOCUMENT || finished) {
+            return false;
+        }
+        if (record == TokenStreamWriter.END) {
+            finished = true;
+            return false;
+        }
+        if (record >= TYPES.length) {
+            throw new IOException("Illegal token type " + record);
+        }
+        type = TYPES[record];
+        start = end + readVarint();
+        end = start + readVarint();
+        text = null;
+        if ((flags & TokenStreamWriter.TEXT) != 0) {
+            if ((flags & TokenStreamWriter.STRING_TABLE) != 0
+                    && TokenStreamWriter.isName(type)) {
+                int reference = readVarint();
+                if (reference == 0) {
+                    text = readString();
+                    strings.add(text);
+                } else if (reference <= strings.size()) {
+                    text = strings.get(reference - 1);
+                } else {
+                    throw new IOException("Unknown string " + reference);
+                }
+            } else {
+                text = readString();
+            }
+        }
+        record = -1;
+        return true;
+    }
+
+    public Token.Type getType() {
+        return type;
+    }
+
+    /**
+     * returns the offset of the current token in its document
+     */
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * returns the text of the current token,
+     * or null if the stream holds no text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * creates the token object for the current token
+     */
+    public Token getToken() {
+        Token token = new Token(type, text);
+        token.setOffset(start);
+        return token;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit && !fill()) {
+            throw new EOFException("Token stream is truncated");
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private String readString() throws IOException {
+        int length = readVarint();
+        if (limit - position >= length) {
+            String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return string;
+        }
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            if (position == limit && !fill()) {
+                throw new EOFException("Token stream is truncated");
+            }
+            int count = Math.min(length - copied, limit - position);
+            System.arraycopy(buffer, position, bytes, copied, count);
+            position += count;
+            copied += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,298 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Writes tokens in the compact binary format read by
+ * {@link TokenStreamReader}. The writer is a {@link TokenSink}, so the
+ * lexer may write its tokens straight into it without creating
+ * token objects.
+ * <p>
+ * The stream starts with the magic bytes {@code HSTK}, the version and
+ * the flags byte, followed by the records: a document record
+ * ({@link #DOCUMENT}, the name of the document) starts the tokens of every
+ * document and the stream ends with {@link #END}. The tokens of a document
+ * that failed to be lexed are followed by the error record ({@link #ERROR},
+ * the message of the failure). A token record is the
+ * ordinal of its type, the number of characters between the end of the
+ * previous token and its start and its length, both as unsigned LEB128
+ * varints, followed by its text if the stream has {@link #TEXT}. With the
+ * {@link #STRING_TABLE} the text of identifiers, keywords, operators and
+ * punctuation is written once: a varint 0 followed by the new string adds
+ * it to the table, a varint {@code n} refers to the {@code n}-th string
+ * added. Strings are written as their length in bytes followed by UTF-8.
+ * <p>
+ * {@link IOException} thrown while writing tokens passed as a sink
+ * is rethrown wrapped into {@link UncheckedIOException}.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class TokenStreamWriter implements TokenSink, Flushable, Closeable {
+    static final byte[] MAGIC = {'H', 'S', 'T', 'K'};
+    static final int VERSION = 2;
+
+    /**
+     * the flag of the streams that hold the text of the tokens
+     */
+    public static final int TEXT = 1;
+    /**
+     * the flag of the streams that keep the text of names in a string table
+     */
+    public static final int STRING_TABLE = 2;
+
+    static final int ERROR = 0x7D;
+    static final int DOCUMENT = 0x7E;
+    static final int END = 0x7F;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * the longest encoding of a token record without its text
+     */
+    private static final int MAX_RECORD = 1 + 5 + 5 + 5;
+
+    private final OutputStream out;
+    private final int flags;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int previousEnd = 0;
+    private final SymbolTable strings;
+    private boolean closed = false;
+
+    /**
+     * creates the writer of the stream holding the text of the tokens
+     * with the string table
+     */
+    public TokenStreamWriter(OutputStream out) throws IOException {
+        this(out, TEXT | STRING_TABLE);
+    }
+
+    /**
+     * creates the writer and writes the header of the stream
+     *
+     * @param out the stream to write to
+     * @param flags the combination of {@link #TEXT} and {@link #STRING_TABLE}
+     */
+    public TokenStreamWriter(OutputStream out, int flags) throws IOException {
+        if ((flags & ~(TEXT | STRING_TABLE)) != 0
+                || flags == STRING_TABLE) {
+            throw new IllegalArgumentException("Illegal flags " + flags);
+        }
+        this.out = out;
+        this.flags = flags;
+        this.strings = (flags & STRING_TABLE) != 0 ? new SymbolTable() : null;
+        System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+        position = MAGIC.length;
+        buffer[position++] = VERSION;
+        buffer[position++] = (byte) flags;
+    }
+
+    /**
+     * starts a new document, the offsets of the following tokens
+     * are relative to its start
+     *
+     * @param name the name of the document, e.g. its path
+     */
+    public void startDocument(String name) throws IOException {
+        ensure(1);
+        buffer[position++] = DOCUMENT;
+        writeString(name);
+        previousEnd = 0;
+    }
+
+    /**
+     * records the failure of the current document, which ends it;
+     * the tokens written before are kept
+     *
+     * @param message the message of the failure
+     */
+    public void error(String message) throws IOException {
+        ensure(1);
+        buffer[position++] = ERROR;
+        writeString(message == null ? "" : message);
+    }
+
+    /**
+     * writes the tokens of the list, which must carry their offsets
+     */
+    public void write(List<Token> tokens) throws IOException {
+        for (Token token : tokens) {
+            write(token);
+        }
+    }
+
+    /**
+     * writes the token, which must carry its offset
+     */
+    public void write(Token token) throws IOException {
+        if (token.getOffset() < 0) {
+            throw new IllegalArgumentException("Token has no offset: " + token);
+        }
+        char[] chars = token.getString().toCharArray();
+        int start = token.getOffset();
+        writeToken(token.getType(), start, start + chars.length, chars, 0);
+    }
+
+    @Override
+    public void token(Token.Type type, int start, int end,
+                      char[] chars, int offset) {
+        try {
+            writeToken(type, start, end, chars, offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeToken(Token.Type type, int start, int end,
+                            char[] chars, int offset) throws IOException {
+        if (start < previousEnd) {
+            throw new IllegalArgumentException("Token at " + start
+                    + " overlaps the previous one ending at " + previousEnd);
+        }
+        ensure(MAX_RECORD);
+        buffer[position++] = (byte) type.ordinal();
+        writeVarint(start - previousEnd);
+        writeVarint(end - start);
+        previousEnd = end;
+        if ((flags & TEXT) == 0) {
+            return;
+        }
+        int length = end - start;
+        if (strings != null && isName(type)) {
+            int known = strings.size();
+            int id = strings.intern(chars, offset, length,
+                    SymbolTable.hash(chars, offset, length));
+            if (id < known) {
+                writeVarint(id + 1);
+                return;
+            }
+            writeVarint(0);
+        }
+        writeChars(chars, offset, length);
+    }
+
+    /**
+     * checks whether the text of the tokens of the type is kept in the string table
+     */
+    static boolean isName(Token.Type type) {
+        return type == Token.Type.identifier || type == Token.Type.keyword
+                || type == Token.Type.operator || type == Token.Type.punctuation;
+    }
+
+    /**
+     * writes the end of the stream and flushes it, the stream is not closed
+     */
+    public void finish() throws IOException {
+        if (!closed) {
+            ensure(1);
+            buffer[position++] = END;
+            closed = true;
+        }
+        flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+        out.flush();
+    }
+
+    /**
+     * finishes the stream and closes the underlying one
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * makes room for the given number of bytes in the buffer
+     */
+    private void ensure(int count) throws IOException {
+        if (closed) {
+            throw new IOException("Token stream is finished");
+        }
+        if (position + count > buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeString(String string) throws IOException {
+        char[] chars = string.toCharArray();
+        writeChars(chars, 0, chars.length);
+    }
+
+    /**
+     * writes the length of the characters in UTF-8 and their encoding,
+     * an unpaired surrogate is replaced with '?'
+     */
+    private void writeChars(char[] chars, int offset, int length)
+            throws IOException {
+        int bytes = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (isPair(chars, i, offset + length)) {
+                bytes += 4;
+                ++i;
+            } else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        ensure(5);
+        writeVarint(bytes);
+        for (int i = offset; i < offset + length; i++) {
+            if (position + 4 > buffer.length) {
+                ensure(4);
+            }
+            char c = chars[i];
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (isPair(chars, i, offset + length)) {
+                int codePoint = Character.toCodePoint(c, chars[++i]);
+                buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private static boolean isPair(char[] chars, int index, int end) {
+        return Character.isHighSurrogate(chars[index]) && index + 1 < end
+                && Character.isLowSurrogate(chars[index + 1]);
+    }
+}
@@ -0,0 +1,19 @@
+package com.tsushko.spos.hs.lexer;
+
+/**
+ * Wraps an {@link UnexpectedSymbolException} where a checked
+ * exception can not be thrown, e.g. from an iterator or a stream
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class UncheckedLexerException extends RuntimeException {
+    public UncheckedLexerException(UnexpectedSymbolException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public UnexpectedSymbolException getCause() {
+        return (UnexpectedSymbolException) super.getCause();
+    }
+}
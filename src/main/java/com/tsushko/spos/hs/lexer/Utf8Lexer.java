@@ -0,0 +1,798 @@
+package com.tsushko.spos.hs.lexer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lexes UTF-8 encoded documents straight from their bytes, without
+ * decoding them into characters first. ASCII bytes are classified as
+ * they are; a multi-byte sequence is decoded only to classify the
+ * character it stands for. The tokens are reported as the spans of the
+ * bytes of the document, so the offsets are byte offsets.
+ * <p>
+ * The tokens are recognized by the automaton generated from the lexical
+ * grammar, see {@link Lexer#setTableDriven(boolean)}, with the nested
+ * comments, pragmas and malformed tokens lexed by states ported from
+ * {@link Lexer}, so the tokens are those of {@link Lexer} decoding the
+ * document as UTF-8. The only difference is that a character outside the
+ * Basic Multilingual Plane is never split between two tokens, while
+ * {@link Lexer} may split its surrogate pair when recovering from an error.
+ * Malformed sequences are read as U+FFFD, the same way
+ * {@link java.io.FileReader} decodes them.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see ByteTokenSink
+ */
+public class Utf8Lexer {
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private ByteBuffer bytes;
+    private int limit;
+    private ByteTokenSink sink;
+    /**
+     * the index of the first byte of the token being lexed
+     */
+    private int mark;
+    /**
+     * the index of the next byte
+     */
+    private int position;
+    /**
+     * the number of bytes of the sequence decoded last
+     */
+    private int width;
+    private final EscapeInput escapeInput = new EscapeInput();
+
+    private boolean recovering = false;
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+
+    /**
+     * Sets whether the lexer recovers from malformed input instead of
+     * throwing {@link UnexpectedSymbolException}, see
+     * {@link Lexer#setRecovering(boolean)}.
+     *
+     * @param recovering if the lexer should recover from errors
+     */
+    public void setRecovering(boolean recovering) {
+        this.recovering = recovering;
+    }
+
+    /**
+     * Returns the diagnostics of the unidentified tokens of the document
+     * lexed last, with byte offsets.
+     *
+     * @return the copy of the diagnostics
+     */
+    public List<Diagnostic> getDiagnostics() {
+        return new ArrayList<>(diagnostics);
+    }
+
+    /**
+     * Lexes the UTF-8 bytes from the position up to the limit of the buffer
+     * and passes every token to the sink as soon as it is recognized.
+     * The offsets of the tokens are the indices of their bytes in the buffer,
+     * the position of the buffer is not changed.
+     *
+     * @param bytes the bytes of the document
+     * @param sink the receiver of the tokens
+     */
+    public void lex(ByteBuffer bytes, ByteTokenSink sink)
+            throws UnexpectedSymbolException {
+        this.bytes = bytes;
+        this.limit = bytes.limit();
+        this.sink = sink;
+        this.position = bytes.position();
+        diagnostics.clear();
+        try {
+            while (position < limit) {
+                lexToken();
+            }
+        } finally {
+            this.bytes = null;
+            this.sink = null;
+        }
+    }
+
+    /**
+     * Lexes the UTF-8 bytes of the array range,
+     * see {@link #lex(ByteBuffer, ByteTokenSink)}.
+     * The offsets of the tokens are the indices of their bytes in the array.
+     *
+     * @param bytes the array holding the document
+     * @param offset the index of the first byte of the document
+     * @param length the number of the bytes of the document
+     * @param sink the receiver of the tokens
+     */
+    public void lex(byte[] bytes, int offset, int length, ByteTokenSink sink)
+            throws UnexpectedSymbolException {
+        lex(ByteBuffer.wrap(bytes, offset, length), sink);
+    }
+
+    /**
+     * Maps the UTF-8 encoded file into memory and lexes it,
+     * see {@link #lex(ByteBuffer, ByteTokenSink)}.
+     *
+     * @param file the Haskell source file
+     * @param sink the receiver of the tokens
+     * @throws java.io.FileNotFoundException if the file does not exist
+     */
+    public void lexDocument(File file, ByteTokenSink sink)
+            throws IOException, UnexpectedSymbolException {
+        ByteBuffer mapped;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be mapped: " + file);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        lex(mapped, sink);
+    }
+
+    /**
+     * Maps the UTF-8 encoded file into memory and lexes it into tokens,
+     * whose offsets are byte offsets. Only the text of the tokens
+     * is decoded.
+     *
+     * @param file the Haskell source file
+     * @return the list of tokens
+     * @throws java.io.FileNotFoundException if the file does not exist
+     */
+    public List<Token> lexDocument(File file)
+            throws IOException, UnexpectedSymbolException {
+        List<Token> tokens = new ArrayList<>();
+        lexDocument(file, (type, start, end, bytes) -> {
+            Token token = new Token(type, decode(bytes, start, end));
+            token.setOffset(start);
+            tokens.add(token);
+        });
+        return tokens;
+    }
+
+    /**
+     * decodes the text of the token
+     *
+     * @param bytes the buffer holding the document
+     * @param start the index of the first byte of the token
+     * @param end the index following the last byte of the token
+     */
+    public static String decode(ByteBuffer bytes, int start, int end) {
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + start,
+                    end - start, StandardCharsets.UTF_8);
+        }
+        byte[] copy = new byte[end - start];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = bytes.get(start + i);
+        }
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * decodes the character starting at the index, setting the width
+     * of its sequence
+     *
+     * @return the code point of the character or U+FFFD if the sequence
+     *         is malformed, in which case its longest valid prefix is skipped
+     */
+    private int decode(int index) {
+        int lead = bytes.get(index) & 0xFF;
+        if (lead < 0x80) {
+            width = 1;
+            return lead;
+        }
+        int following;
+        int codePoint;
+        int low = 0x80;
+        int high = 0xBF;
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            following = 1;
+            codePoint = lead & 0x1F;
+        } else if (lead >= 0xE0 && lead <= 0xEF) {
+            following = 2;
+            codePoint = lead & 0x0F;
+            // no overlong sequences, the surrogates are checked once decoded
+            if (lead == 0xE0) {
+                low = 0xA0;
+            }
+        } else if (lead >= 0xF0 && lead <= 0xF4) {
+            following = 3;
+            codePoint = lead & 0x07;
+            // no overlong sequences and nothing past U+10FFFF
+            if (lead == 0xF0) {
+                low = 0x90;
+            } else if (lead == 0xF4) {
+                high = 0x8F;
+            }
+        } else {
+            width = 1;
+            return REPLACEMENT;
+        }
+        int i = index + 1;
+        for (int k = 0; k < following; k++, i++) {
+            int b = i < limit ? bytes.get(i) & 0xFF : -1;
+            if (b < low || b > high) {
+                width = i - index;
+                return REPLACEMENT;
+            }
+            codePoint = codePoint << 6 | (b & 0x3F);
+            low = 0x80;
+            high = 0xBF;
+        }
+        width = i - index;
+        // the whole encoded surrogate is malformed, as the decoder of JDK reads it
+        return Character.isSurrogate((char) codePoint) ? REPLACEMENT : codePoint;
+    }
+
+    /**
+     * returns the character starting at the index, the high surrogate
+     * for the characters outside the Basic Multilingual Plane
+     */
+    private char charAt(int index) {
+        byte b = bytes.get(index);
+        if (b >= 0) {
+            return (char) b;
+        }
+        int codePoint = decode(index);
+        return codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT
+                ? (char) codePoint : Character.highSurrogate(codePoint);
+    }
+
+    /**
+     * returns the index following the character starting at the index
+     */
+    private int next(int index) {
+        if (bytes.get(index) >= 0) {
+            return index + 1;
+        }
+        decode(index);
+        return index + width;
+    }
+
+    /**
+     * returns the character starting at the index or
+     * {@link CharCursor#EOF_CHAR} if it is past the end of input
+     */
+    private char peek(int index) {
+        return index < limit ? charAt(index) : CharCursor.EOF_CHAR;
+    }
+
+    private boolean is(char c) {
+        return position < limit && bytes.get(position) == c;
+    }
+
+    private boolean is(char c0, char c1) {
+        return position + 1 < limit && bytes.get(position) == c0
+                && bytes.get(position + 1) == c1;
+    }
+
+    private boolean is(char c0, char c1, char c2) {
+        return position + 2 < limit && bytes.get(position) == c0
+                && bytes.get(position + 1) == c1 && bytes.get(position + 2) == c2;
+    }
+
+    private boolean isEOF() {
+        return position >= limit;
+    }
+
+    /**
+     * passes the token from the mark up to the current position to the sink
+     */
+    private void emit(Token.Type type) {
+        sink.token(type, mark, position, bytes);
+    }
+
+    private void diagnose(int offset, String message) {
+        diagnostics.add(new Diagnostic(mark, offset, message));
+    }
+
+    private void fail(String message) throws UnexpectedSymbolException {
+        if (!recovering) {
+            throw new UnexpectedSymbolException(message);
+        }
+        diagnose(position, message);
+    }
+
+    /**
+     * initial state
+     */
+    private void lexToken() throws UnexpectedSymbolException {
+        mark = position;
+        Dfa dfa = LexicalGrammar.DFA;
+        int state = dfa.start();
+        int rule = -1;
+        int end = position;
+        int i = position;
+        while (i < limit) {
+            byte b = bytes.get(i);
+            if (b >= 0) {
+                // ASCII
+                state = dfa.next(state, (char) b);
+                ++i;
+            } else {
+                int codePoint = decode(i);
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    state = dfa.next(state, (char) codePoint);
+                } else {
+                    state = dfa.next(state, Character.highSurrogate(codePoint));
+                    if (state != Dfa.DEAD) {
+                        state = dfa.next(state, Character.lowSurrogate(codePoint));
+                    }
+                }
+                i += width;
+            }
+            if (state == Dfa.DEAD) {
+                break;
+            }
+            if (dfa.accept(state) >= 0) {
+                rule = dfa.accept(state);
+                end = i;
+            }
+        }
+        LexicalGrammar.Rule matched = rule < 0 ? LexicalGrammar.Rule.fallback
+                : LexicalGrammar.RULES[rule];
+        if (matched == LexicalGrammar.Rule.fallback) {
+            lexState();
+        } else if (matched == LexicalGrammar.Rule.whitespace) {
+            position = end;
+            sink.whitespace(mark, position, bytes);
+        } else {
+            position = end - matched.trailing();
+            emit(matched.type);
+        }
+    }
+
+    /**
+     * lexes the token the automaton leaves to the states of {@link Lexer}
+     */
+    private void lexState() throws UnexpectedSymbolException {
+        char c = charAt(position);
+        switch (CharClass.kind(c)) {
+            case CharClass.KIND_WHITESPACE:
+                do {
+                    position = next(position);
+                } while (!isEOF() && CharClass.is(charAt(position), CharClass.WHITESPACE));
+                sink.whitespace(mark, position, bytes);
+                break;
+            case CharClass.KIND_SPECIAL:
+                if (is('{', '-', '#')) {
+                    lexPragma();
+                } else if (is('{', '-')) {
+                    lexNestedComment();
+                } else {
+                    ++position;
+                    emit(Token.Type.punctuation);
+                }
+                break;
+            case CharClass.KIND_SYMBOL:
+                if (is('-', '-')) {
+                    lexDashes();
+                } else {
+                    lexOperator();
+                }
+                break;
+            case CharClass.KIND_DIGIT:
+                if (isRadixPrefix('o', 'O', CharClass.OCTAL)
+                        || isRadixPrefix('x', 'X', CharClass.HEX)) {
+                    position += 3;
+                    int digits = bytes.get(position - 2) == 'o'
+                            || bytes.get(position - 2) == 'O' ? CharClass.OCTAL : CharClass.HEX;
+                    while (!isEOF() && CharClass.is(charAt(position), digits)) {
+                        ++position;
+                    }
+                    emit(Token.Type.numericConstant);
+                } else {
+                    lexDecimalOrFloat();
+                }
+                break;
+            case CharClass.KIND_UPPER:
+                lexConstructorOrQualifier();
+                break;
+            case CharClass.KIND_SMALL:
+                lexKeywordOrIdentifier();
+                break;
+            case CharClass.KIND_QUOTE:
+                lexChar();
+                break;
+            case CharClass.KIND_DOUBLE_QUOTE:
+                lexString();
+                break;
+            default:
+                lexUnexpected();
+                break;
+        }
+    }
+
+    /**
+     * checks whether the input starts with 0 followed by
+     * the given radix letter and a digit of the radix
+     */
+    private boolean isRadixPrefix(char lower, char upper, int digits) {
+        if (!is('0') || position + 2 >= limit) {
+            return false;
+        }
+        byte letter = bytes.get(position + 1);
+        return (letter == lower || letter == upper)
+                && CharClass.is(charAt(position + 2), digits);
+    }
+
+    private void lexUnexpected() throws UnexpectedSymbolException {
+        char c = charAt(position);
+        if (!recovering) {
+            throw new UnexpectedSymbolException(c);
+        }
+        // synchronization symbol - the next character
+        diagnose(position, "Unexpected character " + c);
+        position = next(position);
+        emit(Token.Type.unidentified);
+    }
+
+    private void lexNestedComment() {
+        int balance = 1;
+
+        // absorb {-, the delimiters are ASCII, which never occurs in a multi-byte sequence
+        position += 2;
+
+        do {
+            if (is('-', '}')) {
+                position += 2;
+                if (--balance == 0) {
+                    emit(Token.Type.comment);
+                }
+            } else if (is('{', '-')) {
+                position += 2;
+                ++balance;
+            } else if (isEOF()) {
+                diagnose(position, "EOF before comment closed");
+                emit(Token.Type.unidentified);
+                return;
+            } else {
+                ++position;
+            }
+        } while (balance != 0);
+    }
+
+    private void lexPragma() {
+        int balance = 1;
+
+        // absorb {-#
+        position += 3;
+
+        do {
+            if (is('#', '-', '}')) {
+                position += 3;
+                if (--balance == 0) {
+                    emit(Token.Type.pragma);
+                }
+            } else if (is('-', '}')) {
+                position += 2;
+                if (--balance == 0) {
+                    emit(Token.Type.comment);
+                }
+            } else if (is('{', '-')) {
+                position += 2;
+                ++balance;
+            } else if (isEOF()) {
+                diagnose(position, "EOF before pragma closed");
+                emit(Token.Type.unidentified);
+                return;
+            } else {
+                ++position;
+            }
+        } while (balance != 0);
+    }
+
+    private void lexDashes() {
+        boolean allDashes = true;
+
+        // absorb --
+        position += 2;
+
+        while (!isEOF() && CharClass.is(charAt(position), CharClass.SYMBOL)) {
+            allDashes &= bytes.get(position) == '-';
+            position = next(position);
+        }
+
+        if (allDashes) {
+            while (!is('\n')) {
+                if (isEOF()) {
+                    diagnose(position, "EOF before line break ending comment");
+                    emit(Token.Type.unidentified);
+                    return;
+                }
+                ++position;
+            }
+            emit(Token.Type.comment);
+        } else {
+            emit(Token.Type.operator);
+        }
+    }
+
+    private void lexDecimalOrFloat() {
+        skip(CharClass.DIGIT);
+        // fractional part
+        if (is('.') && CharClass.is(peek(position + 1), CharClass.DIGIT)
+                && position + 1 < limit) {
+            ++position;
+            skip(CharClass.DIGIT);
+        }
+        // exponent
+        if (is('e') || is('E')) {
+            char sign = peek(position + 1);
+            if ((sign == '+' || sign == '-')
+                    && position + 2 < limit
+                    && CharClass.is(charAt(position + 2), CharClass.DIGIT)) {
+                position = next(position + 2);
+            } else if (position + 1 < limit
+                    && CharClass.is(charAt(position + 1), CharClass.DIGIT)) {
+                position = next(position + 1);
+            } else {
+                // synchronization symbol - e|E
+                diagnose(position, "Malformed exponent");
+                emit(Token.Type.unidentified);
+                return;
+            }
+            skip(CharClass.DIGIT);
+        }
+        emit(Token.Type.numericConstant);
+    }
+
+    private void lexConstructorOrQualifier() {
+        for (;;) {
+            // absorb the uppercase character
+            position = next(position);
+            skip(CharClass.IDENTIFIER);
+
+            char next = peek(position + 1);
+            if (is('.') && CharClass.is(next, CharClass.SMALL)) {
+                // qualified variable identifier
+                ++position;
+                skip(CharClass.IDENTIFIER);
+                emit(Token.Type.identifier);
+                return;
+            } else if (is('.') && CharClass.is(next, CharClass.UPPER)) {
+                // another qualifier or constructor identifier
+                ++position;
+            } else if (is('.') && CharClass.is(next, CharClass.SYMBOL)
+                    && position + 1 < limit) {
+                // qualified operator
+                ++position;
+                skip(CharClass.SYMBOL);
+                emit(Token.Type.operator);
+                return;
+            } else {
+                // constructor identifier, the dot if any is the next token
+                emit(Token.Type.identifier);
+                return;
+            }
+        }
+    }
+
+    private void lexKeywordOrIdentifier() {
+        // absorb the lowercase character
+        position = next(position);
+        skip(CharClass.IDENTIFIER);
+        emit(isKeyword() ? Token.Type.keyword : Token.Type.identifier);
+    }
+
+    /**
+     * checks whether the word from the mark up to the current position
+     * is a keyword, without decoding it
+     */
+    private boolean isKeyword() {
+        return Lexer.keywords.matches(bytes, mark, position - mark);
+    }
+
+    private void lexOperator() {
+        skip(CharClass.SYMBOL);
+        emit(Token.Type.operator);
+    }
+
+    /**
+     * skips the characters having any of the property flags
+     */
+    private void skip(int flags) {
+        while (!isEOF() && CharClass.is(charAt(position), flags)) {
+            position = next(position);
+        }
+    }
+
+    /**
+     * skips the rest of a malformed literal up to and including
+     * its closing quote, but not past the end of its line
+     */
+    private void skipLiteral(char quote) {
+        while (!isEOF() && !is(quote) && !is('\n')) {
+            if (is('\\') && position + 1 < limit && bytes.get(position + 1) != '\n') {
+                position = next(position + 1);
+            } else {
+                position = next(position);
+            }
+        }
+        if (is(quote)) {
+            ++position;
+        }
+    }
+
+    private void lexChar() throws UnexpectedSymbolException {
+        // absorb '
+        ++position;
+
+        // between ' and '
+        if (isEOF()) {
+            fail("EOF before character constant closed");
+            emit(Token.Type.unidentified);
+            return;
+        } else if (is('\\')) {
+            if (!lexEscape()) {
+                // synchronization symbol - '
+                skipLiteral('\'');
+                emit(Token.Type.unidentified);
+                return;
+            }
+        } else {
+            boolean supplementary = decode(position) >= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+            position += width;
+            if (supplementary) {
+                // a surrogate pair is not a single char
+                diagnose(position, "Missing closing '");
+                emit(Token.Type.unidentified);
+                return;
+            }
+        }
+
+        // closing '
+        if (is('\'')) {
+            ++position;
+            emit(Token.Type.symbolicConstant);
+        } else {
+            // synchronization symbol - current char
+            diagnose(position, "Missing closing '");
+            emit(Token.Type.unidentified);
+        }
+    }
+
+    private void lexString() throws UnexpectedSymbolException {
+        // absorb "
+        ++position;
+
+        for (;;) {
+            if (isEOF()) {
+                fail("EOF before string constant closed");
+                emit(Token.Type.unidentified);
+                return;
+            } else if (recovering && is('\n')) {
+                // synchronization symbol - line break, which is not allowed in a string
+                diagnose(position, "Line break in string constant");
+                emit(Token.Type.unidentified);
+                return;
+            } else if (is('\\', '&')) {
+                // null symbol
+                position += 2;
+            } else if (is('\\') && position + 1 < limit
+                    && CharClass.is(charAt(position + 1), CharClass.WHITESPACE)) {
+                // gap
+                position = next(position + 1);
+                skip(CharClass.WHITESPACE);
+                if (is('\\')) {
+                    ++position;
+                } else {
+                    // synchronization symbol - "
+                    diagnose(position, "Malformed string gap");
+                    while (!isEOF() && !is('\"')) {
+                        position += is('\\', '"') ? 2 : 1;
+                    }
+                    if (!isEOF()) {
+                        ++position;
+                    }
+                    emit(Token.Type.unidentified);
+                    return;
+                }
+            } else if (is('\\') && position + 1 < limit) {
+                // escape sequence
+                if (!lexEscape()) {
+                    // synchronization symbol - "
+                    skipLiteral('\"');
+                    emit(Token.Type.unidentified);
+                    return;
+                }
+            } else if (is('\"')) {
+                // end of string literal
+                ++position;
+                emit(Token.Type.symbolicConstant);
+                return;
+            } else {
+                position = next(position);
+            }
+        }
+    }
+
+    /**
+     * lexes the escape sequence starting with the backslash
+     *
+     * @return if the escape sequence is legal, the caller recovers otherwise
+     */
+    private boolean lexEscape() throws UnexpectedSymbolException {
+        ++position;
+        if (isEOF()) {
+            fail("EOF before character constant closed");
+            return false;
+        }
+        escapeInput.reset(position);
+        long escape;
+        try {
+            escape = EscapeDecoder.match(escapeInput);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (escape == EscapeDecoder.NO_MATCH) {
+            fail("Illegal escape sequence");
+            return false;
+        }
+        position = escapeInput.index(EscapeDecoder.length(escape));
+        return true;
+    }
+
+    /**
+     * the characters following the backslash of an escape sequence,
+     * decoded as the escape decoder reads them
+     */
+    private class EscapeInput implements EscapeDecoder.Input {
+        private int from;
+        /**
+         * the distance of the character at the index from the start
+         */
+        private int ahead;
+        private int index;
+        /**
+         * if the character at the distance is the low surrogate
+         * of the character at the index
+         */
+        private boolean low;
+
+        void reset(int from) {
+            this.from = from;
+            this.ahead = 0;
+            this.index = from;
+            this.low = false;
+        }
+
+        /**
+         * returns the index of the byte the character at the distance starts at
+         */
+        int index(int target) {
+            if (target < ahead) {
+                reset(from);
+            }
+            while (ahead < target && index < limit) {
+                if (!low && decode(index) >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    low = true;
+                } else {
+                    index = next(index);
+                    low = false;
+                }
+                ++ahead;
+            }
+            return ahead == target ? index : limit;
+        }
+
+        @Override
+        public char charAt(int target) {
+            int at = index(target);
+            if (at >= limit) {
+                return CharCursor.EOF_CHAR;
+            }
+            int codePoint = decode(at);
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                return (char) codePoint;
+            }
+            return low ? Character.lowSurrogate(codePoint) : Character.highSurrogate(codePoint);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.tsushko.spos.hs.lexer;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Scans the runs of characters the lexer skips in bulk: whitespace and
+ * the bodies of comments and strings up to their delimiters.
+ * <p>
+ * This is the version for Java 17 and later, which compares as many
+ * characters at once as the vector registers of the processor hold,
+ * from 8 to 32. The Vector API is incubating, so it is used only when
+ * the JVM is started with {@code --add-modules jdk.incubator.vector},
+ * otherwise the characters are scanned one by one.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ * @see CharCursor
+ */
+final class CharScanner {
+    private static final boolean VECTORIZED = ModuleLayer.boot()
+            .findModule("jdk.incubator.vector").isPresent();
+
+    private CharScanner() {
+        // static methods only
+    }
+
+    /**
+     * returns if the characters are scanned by the vector instructions
+     */
+    static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * returns the index of the first character of the range that is equal
+     * to any of the given characters, or the end of the range
+     */
+    static int indexOf(char[] chars, int from, int to,
+                       char c0, char c1, char c2) {
+        int i = VECTORIZED ? Vectors.indexOf(chars, from, to, c0, c1, c2) : from;
+        for (; i < to; i++) {
+            char c = chars[i];
+            if (c == c0 || c == c1 || c == c2) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * returns the index of the first character of the range
+     * that is not whitespace, or the end of the range
+     */
+    static int skipWhitespace(char[] chars, int from, int to) {
+        int i = from;
+        for (;;) {
+            if (VECTORIZED) {
+                i = Vectors.skipAsciiWhitespace(chars, i, to);
+            }
+            if (i < to && CharClass.is(chars[i], CharClass.WHITESPACE)) {
+                ++i;
+            } else {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * the vector loops, which are loaded only if the module is present
+     */
+    private static final class Vectors {
+        private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+
+        /**
+         * returns the index of the first character equal to any of the given
+         * characters, or the index of the first character of the tail
+         * shorter than a vector
+         */
+        static int indexOf(char[] chars, int from, int to,
+                           char c0, char c1, char c2) {
+            int i = from;
+            for (int last = to - SPECIES.length(); i <= last; i += SPECIES.length()) {
+                ShortVector vector = ShortVector.fromCharArray(SPECIES, chars, i);
+                VectorMask<Short> found = vector.eq((short) c0)
+                        .or(vector.eq((short) c1))
+                        .or(vector.eq((short) c2));
+                if (found.anyTrue()) {
+                    return i + found.firstTrue();
+                }
+            }
+            return i;
+        }
+
+        /**
+         * returns the index of the first character that is not ASCII
+         * whitespace, or the index of the first character of the tail
+         * shorter than a vector
+         */
+        static int skipAsciiWhitespace(char[] chars, int from, int to) {
+            int i = from;
+            for (int last = to - SPECIES.length(); i <= last; i += SPECIES.length()) {
+                ShortVector vector = ShortVector.fromCharArray(SPECIES, chars, i);
+                // \t \n \u000B \f \r, and \u001C to \u001F along with the space
+                VectorMask<Short> whitespace = vector.compare(VectorOperators.GE, (short) 9)
+                        .and(vector.compare(VectorOperators.LE, (short) 13))
+                        .or(vector.compare(VectorOperators.GE, (short) 28)
+                                .and(vector.compare(VectorOperators.LE, (short) 32)));
+                VectorMask<Short> other = whitespace.not();
+                if (other.anyTrue()) {
+                    return i + other.firstTrue();
+                }
+            }
+            return i;
+        }
+    }
+}